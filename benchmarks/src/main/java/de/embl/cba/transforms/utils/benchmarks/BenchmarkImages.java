@@ -0,0 +1,75 @@
+package de.embl.cba.transforms.utils.benchmarks;
+
+import de.embl.cba.transforms.utils.ImageCreators;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.interpolation.InterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.ClampingNLinearInterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Synthetic inputs and parameter names shared by the benchmarks.
+ */
+public abstract class BenchmarkImages
+{
+	public static final long SEED = 42;
+
+	public static RandomAccessibleInterval createVolume( String pixelType, long[] dimensions )
+	{
+		switch ( pixelType )
+		{
+			case "uint8": return ImageCreators.createSyntheticVolume( dimensions, new UnsignedByteType(), SEED );
+			case "uint16": return ImageCreators.createSyntheticVolume( dimensions, new UnsignedShortType(), SEED );
+			case "float32": return ImageCreators.createSyntheticVolume( dimensions, new FloatType(), SEED );
+			default: throw new IllegalArgumentException( "Pixel type not supported: " + pixelType );
+		}
+	}
+
+	public static long[] cube( int size )
+	{
+		return new long[]{ size, size, size };
+	}
+
+	public static InterpolatorFactory createInterpolatorFactory( String interpolation )
+	{
+		switch ( interpolation )
+		{
+			case "linear": return new NLinearInterpolatorFactory();
+			case "clamping": return new ClampingNLinearInterpolatorFactory();
+			case "nearest": return new NearestNeighborInterpolatorFactory();
+			default: throw new IllegalArgumentException( "Interpolation not supported: " + interpolation );
+		}
+	}
+
+	/**
+	 * Transforms that map the volume roughly onto itself, such that the output has about the input size.
+	 */
+	public static AffineTransform3D createTransform( String transform, long[] dimensions )
+	{
+		final AffineTransform3D affine = new AffineTransform3D();
+		switch ( transform )
+		{
+			case "affine":
+				final double[] center = new double[ 3 ];
+				for ( int d = 0; d < 3; ++d )
+					center[ d ] = dimensions[ d ] / 2.0;
+				affine.translate( -center[ 0 ], -center[ 1 ], -center[ 2 ] );
+				affine.rotate( 2, Math.toRadians( 17 ) );
+				affine.rotate( 0, Math.toRadians( 5 ) );
+				affine.scale( 0.9 );
+				affine.translate( center );
+				return affine;
+			case "scale":
+				affine.set( 0.7, 0, 0, 0, 0, 0.7, 0, 0, 0, 0, 1.3, 0 );
+				return affine;
+			case "translation":
+				affine.translate( 3.3, -2.7, 1.5 );
+				return affine;
+			default: throw new IllegalArgumentException( "Transform not supported: " + transform );
+		}
+	}
+}
@@ -0,0 +1,272 @@
+package de.embl.cba.transforms.utils.benchmarks;
+
+import de.embl.cba.transforms.utils.ImageCreators;
+import de.embl.cba.transforms.utils.LSLFRegistration;
+import de.embl.cba.transforms.utils.PerformanceMetrics;
+import de.embl.cba.transforms.utils.PrimitiveNLinearInterpolatorFactory;
+import de.embl.cba.transforms.utils.StreamingTiffWriter;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * End-to-end benchmark of the LSLF registration command line workflow (load, transform, subsample, save)
+ * on synthetic data.
+ *
+ * For each size, two synthetic 16-bit stacks and a matching BigDataViewer dataset.xml are generated in the
+ * working directory. The registration then runs once per thread count, each time in a fresh JVM that is
+ * limited to that number of processors, such that the peak memory of every run is measured separately.
+ *
+ * Usage: java -cp benchmarks.jar de.embl.cba.transforms.utils.benchmarks.LSLFThroughputBenchmark
+ * [workingDirectory] [sizes, e.g. 256,512] [thread counts, e.g. 1,4,16] [report.json]
+ */
+public class LSLFThroughputBenchmark
+{
+	private static final String RUN = "--run";
+	private static final String RESULT = "RESULT ";
+	private static final String SUB_SAMPLING = "1,1,2";
+
+	public static void main( String[] args ) throws Exception
+	{
+		if ( args.length > 0 && args[ 0 ].equals( RUN ) )
+		{
+			runRegistration( args );
+			return;
+		}
+
+		final File workingDirectory = new File( args.length > 0 ? args[ 0 ] : "lslf-benchmark" );
+		final int[] sizes = parseInts( args.length > 1 ? args[ 1 ] : "128,256" );
+		final int[] threadCounts = parseInts( args.length > 2 ? args[ 2 ] : "1," + Runtime.getRuntime().availableProcessors() );
+		final String reportPath = args.length > 3 ? args[ 3 ] : new File( workingDirectory, "report.json" ).getPath();
+
+		final List< String > results = new ArrayList<>();
+		for ( int size : sizes )
+		{
+			final File directory = new File( workingDirectory, "size" + size );
+			createDataset( directory, size );
+
+			for ( int numThreads : threadCounts )
+			{
+				final String result = runInSeparateJvm( directory, size, numThreads );
+				System.out.println( result );
+				results.add( result );
+			}
+		}
+
+		try ( PrintWriter report = new PrintWriter( reportPath, "UTF-8" ) )
+		{
+			report.println( "[" );
+			report.println( "  " + String.join( ",\n  ", results ) );
+			report.println( "]" );
+		}
+		System.out.println( "Report: " + reportPath );
+	}
+
+	/**
+	 * Writes view0.tif and view1.tif, where view1 is rotated and shifted relative to view0,
+	 * and dataset.xml with the registrations that map both into a common space.
+	 */
+	static void createDataset( File directory, int size ) throws IOException
+	{
+		directory.mkdirs();
+		final long[] dimensions = { size, size, size / 2 };
+
+		StreamingTiffWriter.write(
+				ImageCreators.createSyntheticVolume( dimensions, new UnsignedShortType(), 0 ),
+				new File( directory, "view0.tif" ).getPath(),
+				false,
+				Runtime.getRuntime().availableProcessors() );
+
+		StreamingTiffWriter.write(
+				ImageCreators.createSyntheticVolume( dimensions, new UnsignedShortType(), 1 ),
+				new File( directory, "view1.tif" ).getPath(),
+				false,
+				Runtime.getRuntime().availableProcessors() );
+
+		final AffineTransform3D rotation = new AffineTransform3D();
+		rotation.translate( -size / 2.0, -size / 2.0, -size / 4.0 );
+		rotation.rotate( 2, Math.toRadians( 10 ) );
+		rotation.rotate( 0, Math.toRadians( 3 ) );
+		rotation.translate( size / 2.0 + 2.5, size / 2.0 - 1.5, size / 4.0 );
+
+		try ( PrintWriter xml = new PrintWriter( new File( directory, "dataset.xml" ), "UTF-8" ) )
+		{
+			xml.println( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" );
+			xml.println( "<SpimData version=\"0.2\">" );
+			xml.println( "  <BasePath type=\"relative\">.</BasePath>" );
+			xml.println( "  <SequenceDescription>" );
+			xml.println( "    <ImageLoader format=\"spimreconstruction.stack.ij\">" );
+			xml.println( "      <imagedirectory type=\"relative\">.</imagedirectory>" );
+			xml.println( "      <filePattern>view{a}.tif</filePattern>" );
+			xml.println( "      <layoutTimepoints>0</layoutTimepoints>" );
+			xml.println( "      <layoutChannels>0</layoutChannels>" );
+			xml.println( "      <layoutIlluminations>0</layoutIlluminations>" );
+			xml.println( "      <layoutAngles>1</layoutAngles>" );
+			xml.println( "      <imglib2container>ArrayImgFactory</imglib2container>" );
+			xml.println( "    </ImageLoader>" );
+			xml.println( "    <ViewSetups>" );
+			for ( int setup = 0; setup < 2; ++setup )
+			{
+				xml.println( "      <ViewSetup>" );
+				xml.println( "        <id>" + setup + "</id>" );
+				xml.println( "        <name>" + setup + "</name>" );
+				xml.println( "        <size>" + dimensions[ 0 ] + " " + dimensions[ 1 ] + " " + dimensions[ 2 ] + "</size>" );
+				xml.println( "        <voxelSize>" );
+				xml.println( "          <unit>pixel</unit>" );
+				xml.println( "          <size>1 1 1</size>" );
+				xml.println( "        </voxelSize>" );
+				xml.println( "        <attributes>" );
+				xml.println( "          <illumination>0</illumination>" );
+				xml.println( "          <channel>0</channel>" );
+				xml.println( "          <angle>" + setup + "</angle>" );
+				xml.println( "        </attributes>" );
+				xml.println( "      </ViewSetup>" );
+			}
+			xml.println( "      <Attributes name=\"illumination\"><Illumination><id>0</id><name>0</name></Illumination></Attributes>" );
+			xml.println( "      <Attributes name=\"channel\"><Channel><id>0</id><name>0</name></Channel></Attributes>" );
+			xml.println( "      <Attributes name=\"angle\"><Angle><id>0</id><name>0</name></Angle><Angle><id>1</id><name>1</name></Angle></Attributes>" );
+			xml.println( "    </ViewSetups>" );
+			xml.println( "    <Timepoints type=\"range\">" );
+			xml.println( "      <first>0</first>" );
+			xml.println( "      <last>0</last>" );
+			xml.println( "    </Timepoints>" );
+			xml.println( "  </SequenceDescription>" );
+			xml.println( "  <ViewRegistrations>" );
+			xml.println( viewRegistration( 0, new AffineTransform3D() ) );
+			xml.println( viewRegistration( 1, rotation ) );
+			xml.println( "  </ViewRegistrations>" );
+			xml.println( "</SpimData>" );
+		}
+	}
+
+	private static String viewRegistration( int setup, AffineTransform3D transform )
+	{
+		final double[] values = transform.getRowPackedCopy();
+		final StringBuilder affine = new StringBuilder();
+		for ( double value : values )
+			affine.append( affine.length() > 0 ? " " : "" ).append( value );
+
+		return "    <ViewRegistration timepoint=\"0\" setup=\"" + setup + "\">\n"
+				+ "      <ViewTransform type=\"affine\">\n"
+				+ "        <affine>" + affine + "</affine>\n"
+				+ "      </ViewTransform>\n"
+				+ "    </ViewRegistration>";
+	}
+
+	private static String runInSeparateJvm( File directory, int size, int numThreads ) throws IOException, InterruptedException
+	{
+		final String java = Paths.get( System.getProperty( "java.home" ), "bin", "java" ).toString();
+
+		final ProcessBuilder processBuilder = new ProcessBuilder(
+				java,
+				"-XX:ActiveProcessorCount=" + numThreads,
+				"-cp", System.getProperty( "java.class.path" ),
+				LSLFThroughputBenchmark.class.getName(),
+				RUN,
+				directory.getPath(),
+				Integer.toString( size ),
+				Integer.toString( numThreads ) );
+		processBuilder.redirectErrorStream( true );
+
+		final Process process = processBuilder.start();
+
+		String result = null;
+		try ( BufferedReader output = new BufferedReader( new InputStreamReader( process.getInputStream() ) ) )
+		{
+			String line;
+			while ( ( line = output.readLine() ) != null )
+				if ( line.startsWith( RESULT ) )
+					result = line.substring( RESULT.length() );
+		}
+
+		if ( process.waitFor() != 0 || result == null )
+			throw new IOException( "Benchmark run failed: size " + size + ", " + numThreads + " threads" );
+
+		return result;
+	}
+
+	/**
+	 * Runs the registration in this JVM and prints the measurements as one line of JSON.
+	 */
+	private static void runRegistration( String[] args ) throws Exception
+	{
+		final File directory = new File( args[ 1 ] );
+		final int size = Integer.parseInt( args[ 2 ] );
+		final int numThreads = Integer.parseInt( args[ 3 ] );
+
+		final long[] min = { 0, 0, 0 };
+		final long[] max = { size - 1, size - 1, size / 2 - 1 };
+		final long[] subSampling = parseLongs( SUB_SAMPLING );
+
+		final LSLFRegistration registration = new LSLFRegistration(
+				new File( directory, "view0.tif" ).getPath(),
+				new File( directory, "view1.tif" ).getPath(),
+				new File( directory, "dataset.xml" ).getPath(),
+				min,
+				max,
+				subSampling,
+				new PrimitiveNLinearInterpolatorFactory( true ),
+				false );
+
+		final long start = System.nanoTime();
+		registration.run();
+		final double seconds = ( System.nanoTime() - start ) * 1e-9;
+
+		long outputVoxels = 2;
+		for ( int d = 0; d < 3; ++d )
+			outputVoxels *= ( max[ d ] - min[ d ] ) / subSampling[ d ] + 1;
+
+		final StringBuilder json = new StringBuilder();
+		json.append( "{\"size\": " ).append( size );
+		json.append( ", \"threads\": " ).append( numThreads );
+		json.append( ", \"wallSeconds\": " ).append( seconds );
+		json.append( ", \"outputVoxels\": " ).append( outputVoxels );
+		json.append( ", \"voxelsPerSecond\": " ).append( outputVoxels / seconds );
+
+		json.append( ", \"metrics\": " ).append( registration.getPerformanceMetrics().toJson() );
+		json.append( ", \"peakHeapBytes\": " ).append( PerformanceMetrics.peakHeapBytes() );
+		json.append( ", \"peakRssBytes\": " ).append( peakRssBytes() );
+		json.append( "}" );
+
+		System.out.println( RESULT + json );
+		System.exit( 0 );
+	}
+
+	/**
+	 * @return the peak resident set size on Linux, or -1 where it is not available
+	 */
+	private static long peakRssBytes()
+	{
+		try
+		{
+			for ( String line : Files.readAllLines( Paths.get( "/proc/self/status" ) ) )
+				if ( line.startsWith( "VmHWM:" ) )
+					return 1024 * Long.parseLong( line.replaceAll( "[^0-9]", "" ) );
+		}
+		catch ( IOException e )
+		{
+			// not on Linux
+		}
+		return -1;
+	}
+
+	private static int[] parseInts( String values )
+	{
+		return Arrays.stream( values.split( "," ) ).mapToInt( Integer::parseInt ).toArray();
+	}
+
+	private static long[] parseLongs( String values )
+	{
+		return Arrays.stream( values.split( "," ) ).mapToLong( Long::parseLong ).toArray();
+	}
+}
@@ -0,0 +1,61 @@
+package de.embl.cba.transforms.utils.benchmarks;
+
+import de.embl.cba.transforms.utils.Scalings;
+import net.imglib2.RandomAccessibleInterval;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downscaling into array and cell images.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class ScalingsBenchmark
+{
+	@Param( { "uint8", "uint16", "float32" } )
+	public String pixelType;
+
+	@Param( { "128", "256" } )
+	public int size;
+
+	@Param( { "0.5", "0.25", "0.1" } )
+	public double scalingFactor;
+
+	private RandomAccessibleInterval volume;
+	private double[] scalingFactors;
+
+	@Setup( Level.Trial )
+	public void setup()
+	{
+		volume = BenchmarkImages.createVolume( pixelType, BenchmarkImages.cube( size ) );
+		scalingFactors = new double[]{ scalingFactor, scalingFactor, scalingFactor };
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval rescaledArrayImg()
+	{
+		return Scalings.createRescaledArrayImg( volume, scalingFactors );
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval rescaledCellImg()
+	{
+		return Scalings.createRescaledCellImg( volume, scalingFactors );
+	}
+}
@@ -0,0 +1,101 @@
+package de.embl.cba.transforms.utils.benchmarks;
+
+import de.embl.cba.transforms.utils.BatchedThinPlateSpline;
+import net.imglib2.realtransform.ThinplateSplineTransform;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thin-plate spline evaluation of one output row, point by point and batched.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class ThinPlateSplineBenchmark
+{
+	private static final int ROW_LENGTH = 256;
+	// in voxels; far below what changes an interpolated value, above the round-off of 1000 landmarks
+	private static final double MAX_DEVIATION = 1.0E-4;
+
+	@Param( { "10", "100", "1000" } )
+	public int numLandmarks;
+
+	private ThinplateSplineTransform tps;
+	private BatchedThinPlateSpline batched;
+	private double[][] row;
+	private double[][] transformedRow;
+	private double[] point;
+	private double[] transformedPoint;
+
+	@Setup( Level.Trial )
+	public void setup()
+	{
+		final Random random = new Random( BenchmarkImages.SEED );
+		final double[][] source = new double[ 3 ][ numLandmarks ];
+		final double[][] target = new double[ 3 ][ numLandmarks ];
+		for ( int d = 0; d < 3; ++d )
+			for ( int k = 0; k < numLandmarks; ++k )
+			{
+				source[ d ][ k ] = random.nextDouble() * ROW_LENGTH;
+				target[ d ][ k ] = source[ d ][ k ] + random.nextGaussian() * 5;
+			}
+
+		tps = new ThinplateSplineTransform( source, target );
+		batched = new BatchedThinPlateSpline( source, target );
+
+		row = new double[ 3 ][ ROW_LENGTH ];
+		transformedRow = new double[ 3 ][ ROW_LENGTH ];
+		for ( int x = 0; x < ROW_LENGTH; ++x )
+		{
+			row[ 0 ][ x ] = x;
+			row[ 1 ][ x ] = ROW_LENGTH / 2;
+			row[ 2 ][ x ] = ROW_LENGTH / 3;
+		}
+
+		point = new double[ 3 ];
+		transformedPoint = new double[ 3 ];
+
+		// both must compute the same spline, otherwise the comparison is meaningless
+		final double deviation = batched.maxDeviation( tps, row );
+		if ( deviation > MAX_DEVIATION )
+			throw new IllegalStateException( "Batched and reference thin-plate spline differ by " + deviation );
+	}
+
+	@Benchmark
+	public double pointByPoint()
+	{
+		double sum = 0;
+		for ( int x = 0; x < ROW_LENGTH; ++x )
+		{
+			for ( int d = 0; d < 3; ++d )
+				point[ d ] = row[ d ][ x ];
+
+			tps.apply( point, transformedPoint );
+			sum += transformedPoint[ 0 ];
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public double[][] batched()
+	{
+		batched.apply( row, transformedRow, ROW_LENGTH );
+		return transformedRow;
+	}
+}
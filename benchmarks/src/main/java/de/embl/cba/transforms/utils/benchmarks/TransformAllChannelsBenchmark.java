@@ -0,0 +1,78 @@
+package de.embl.cba.transforms.utils.benchmarks;
+
+import de.embl.cba.transforms.utils.Resampler;
+import de.embl.cba.transforms.utils.Transforms;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.view.Views;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multi-channel transformation and bounding box computation.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class TransformAllChannelsBenchmark
+{
+	@Param( { "uint8", "uint16", "float32" } )
+	public String pixelType;
+
+	@Param( { "64", "128" } )
+	public int size;
+
+	@Param( { "2", "4" } )
+	public int numChannels;
+
+	private RandomAccessibleInterval volume;
+	private RandomAccessibleInterval channels;
+	private AffineTransform3D affine;
+
+	@Setup( Level.Trial )
+	public void setup()
+	{
+		volume = BenchmarkImages.createVolume( pixelType, BenchmarkImages.cube( size ) );
+
+		final RandomAccessibleInterval[] copies = new RandomAccessibleInterval[ numChannels ];
+		for ( int c = 0; c < numChannels; ++c )
+			copies[ c ] = volume;
+		channels = Views.stack( copies );
+
+		affine = BenchmarkImages.createTransform( "affine", BenchmarkImages.cube( size ) );
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval transformAllChannels()
+	{
+		return Resampler.materialize( Transforms.transformAllChannels( channels, affine ), 1 );
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval resampleAllChannels()
+	{
+		return Transforms.resampleAllChannels( channels, affine, 1 );
+	}
+
+	@Benchmark
+	public FinalInterval boundingIntervalAfterTransformation()
+	{
+		return Transforms.createBoundingIntervalAfterTransformation( volume, affine );
+	}
+}
@@ -0,0 +1,69 @@
+package de.embl.cba.transforms.utils.benchmarks;
+
+import de.embl.cba.transforms.utils.Resampler;
+import de.embl.cba.transforms.utils.Transforms;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transformed view plus copy into RAM, as done by the registration, for several transforms,
+ * interpolators, pixel types, sizes and thread counts.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class TransformsBenchmark
+{
+	@Param( { "uint8", "uint16", "float32" } )
+	public String pixelType;
+
+	@Param( { "64", "128", "256" } )
+	public int size;
+
+	@Param( { "affine", "scale", "translation" } )
+	public String transform;
+
+	@Param( { "linear", "clamping", "nearest" } )
+	public String interpolation;
+
+	@Param( { "1", "4", "16" } )
+	public int numThreads;
+
+	private RandomAccessibleInterval volume;
+	private AffineTransform3D affine;
+
+	@Setup( Level.Trial )
+	public void setup()
+	{
+		volume = BenchmarkImages.createVolume( pixelType, BenchmarkImages.cube( size ) );
+		affine = BenchmarkImages.createTransform( transform, BenchmarkImages.cube( size ) );
+	}
+
+	@Benchmark
+	public RandomAccessibleInterval transformedViewAndCopy()
+	{
+		final RandomAccessibleInterval view = Transforms.createTransformedView(
+				volume,
+				affine,
+				BenchmarkImages.createInterpolatorFactory( interpolation ) );
+
+		return Resampler.materialize( view, numThreads );
+	}
+}
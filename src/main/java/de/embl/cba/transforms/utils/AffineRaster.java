@@ -0,0 +1,198 @@
+package de.embl.cba.transforms.utils;
+
+import net.imglib2.Interval;
+import net.imglib2.RealLocalizable;
+import net.imglib2.realtransform.AffineGet;
+
+/**
+ * Walks the voxels of an output block row by row and provides
+ * the corresponding source coordinates of an affine transform.
+ *
+ * The source coordinate of the block start is computed once with the full matrix,
+ * afterwards the position is only advanced by the columns of the inverse matrix,
+ * i.e. by d/dx within a row and by d/dy, d/dz, ... across rows and planes.
+ */
+public class AffineRaster
+{
+	private final AffineGet sourceToTarget;
+	private final AffineGet targetToSource;
+	private final double[][] steps;
+	private final int numTargetDimensions;
+	private final int numSourceDimensions;
+
+	private final long[] position;
+	private final double[] target;
+	private final double[] rowStart;
+	private final double[] source;
+
+	private Interval block;
+
+	/**
+	 * @param sourceToTarget the transform from source into target (output) space
+	 */
+	public AffineRaster( AffineGet sourceToTarget )
+	{
+		this.sourceToTarget = sourceToTarget;
+		this.targetToSource = sourceToTarget.inverse();
+		this.numTargetDimensions = targetToSource.numSourceDimensions();
+		this.numSourceDimensions = targetToSource.numTargetDimensions();
+
+		steps = new double[ numTargetDimensions ][ numSourceDimensions ];
+		for ( int d = 0; d < numTargetDimensions; ++d )
+		{
+			final RealLocalizable step = targetToSource.d( d );
+			for ( int i = 0; i < numSourceDimensions; ++i )
+				steps[ d ][ i ] = step.getDoublePosition( i );
+		}
+
+		position = new long[ numTargetDimensions ];
+		target = new double[ numTargetDimensions ];
+		rowStart = new double[ numSourceDimensions ];
+		source = new double[ numSourceDimensions ];
+	}
+
+	public AffineRaster copy()
+	{
+		return new AffineRaster( sourceToTarget );
+	}
+
+	/**
+	 * Positions the raster at the first voxel of the block.
+	 */
+	public void setBlock( Interval block )
+	{
+		this.block = block;
+		block.min( position );
+
+		for ( int d = 0; d < numTargetDimensions; ++d )
+			target[ d ] = position[ d ];
+
+		targetToSource.apply( target, rowStart );
+		System.arraycopy( rowStart, 0, source, 0, numSourceDimensions );
+	}
+
+	/**
+	 * Moves to the start of the next row of the block.
+	 *
+	 * @return false if the end of the block is reached
+	 */
+	public boolean nextRow()
+	{
+		for ( int d = 1; d < numTargetDimensions; ++d )
+		{
+			if ( position[ d ] < block.max( d ) )
+			{
+				position[ d ]++;
+				add( rowStart, steps[ d ], 1 );
+				System.arraycopy( rowStart, 0, source, 0, numSourceDimensions );
+				return true;
+			}
+
+			add( rowStart, steps[ d ], -( position[ d ] - block.min( d ) ) );
+			position[ d ] = block.min( d );
+		}
+
+		return false;
+	}
+
+	/**
+	 * Advances the source coordinate by one voxel along the row.
+	 */
+	public void fwd()
+	{
+		final double[] dx = steps[ 0 ];
+		for ( int i = 0; i < numSourceDimensions; ++i )
+			source[ i ] += dx[ i ];
+	}
+
+	/**
+	 * Advances the source coordinate by n voxels along the row.
+	 */
+	public void fwd( long n )
+	{
+		add( source, steps[ 0 ], n );
+	}
+
+	/**
+	 * Computes the bounding box, in source space, of the block that was set with {@link #setBlock}.
+	 */
+	public void sourceBounds( double[] min, double[] max )
+	{
+		for ( int i = 0; i < numSourceDimensions; ++i )
+		{
+			min[ i ] = max[ i ] = rowStart[ i ];
+			for ( int d = 0; d < numTargetDimensions; ++d )
+			{
+				final double extent = steps[ d ][ i ] * ( block.dimension( d ) - 1 );
+				if ( extent < 0 ) min[ i ] += extent;
+				else max[ i ] += extent;
+			}
+		}
+	}
+
+	/**
+	 * Finds the voxels of the current row whose source coordinates lie within the given box.
+	 * The span is widened by one voxel on both sides, such that rounding errors cannot exclude voxels.
+	 *
+	 * @param span
+	 * 			receives the offsets of the first and last voxel along the row
+	 * @return false if no voxel of the row maps into the box
+	 */
+	public boolean rowSpan( double[] min, double[] max, long[] span )
+	{
+		final long rowLength = block.dimension( 0 );
+		final double[] dx = steps[ 0 ];
+
+		double first = 0;
+		double last = rowLength - 1;
+
+		for ( int i = 0; i < numSourceDimensions; ++i )
+		{
+			if ( dx[ i ] == 0 )
+			{
+				if ( rowStart[ i ] < min[ i ] || rowStart[ i ] > max[ i ] ) return false;
+				continue;
+			}
+
+			final double a = ( min[ i ] - rowStart[ i ] ) / dx[ i ];
+			final double b = ( max[ i ] - rowStart[ i ] ) / dx[ i ];
+			first = Math.max( first, Math.min( a, b ) );
+			last = Math.min( last, Math.max( a, b ) );
+		}
+
+		span[ 0 ] = Math.max( 0, ( long ) Math.ceil( first ) - 1 );
+		span[ 1 ] = Math.min( rowLength - 1, ( long ) Math.floor( last ) + 1 );
+
+		return span[ 0 ] <= span[ 1 ];
+	}
+
+	/**
+	 * @return the source coordinate of the current voxel; do not modify
+	 */
+	public double[] source()
+	{
+		return source;
+	}
+
+	/**
+	 * @return the target (output) position of the current row start; do not modify
+	 */
+	public long[] rowPosition()
+	{
+		return position;
+	}
+
+	/**
+	 * @return the source coordinate change for one step along target dimension d; do not modify
+	 */
+	public double[] step( int d )
+	{
+		return steps[ d ];
+	}
+
+	private static void add( double[] a, double[] b, double factor )
+	{
+		for ( int i = 0; i < a.length; ++i )
+			a[ i ] += factor * b[ i ];
+	}
+}
@@ -0,0 +1,21 @@
+package de.embl.cba.transforms.utils;
+
+import net.imglib2.realtransform.RealTransform;
+
+/**
+ * A transform that evaluates many points per call, e.g. a whole output row,
+ * from coordinates in structure-of-arrays layout.
+ * {@link Resampler#resampleTargetToSource} uses this instead of one call per voxel.
+ */
+public interface BatchRealTransform extends RealTransform
+{
+	/**
+	 * @param source
+	 * 			source[ d ][ i ] is coordinate d of point i
+	 * @param target
+	 * 			receives the transformed points, in the same layout
+	 * @param length
+	 * 			number of points
+	 */
+	void apply( double[][] source, double[][] target, int length );
+}
@@ -0,0 +1,192 @@
+package de.embl.cba.transforms.utils;
+
+import bdv.img.n5.N5ImageLoader;
+import bdv.spimdata.SequenceDescriptionMinimal;
+import bdv.spimdata.SpimDataMinimal;
+import bdv.spimdata.XmlIoSpimDataMinimal;
+import mpicbg.spim.data.SpimDataException;
+import mpicbg.spim.data.generic.sequence.BasicViewSetup;
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.sequence.FinalVoxelDimensions;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.TimePoints;
+import net.imglib2.FinalDimensions;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Writer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Writes images as multi-resolution BigDataViewer dataset, i.e. an N5 container with the layout
+ * setup{s}/timepoint0/s{level} and an XML file referring to it.
+ *
+ * Each resolution level is computed from the previous level, which is read back from disk,
+ * such that every level is computed exactly once and memory is bounded by the chunk caches.
+ * The setups can be written one by one with {@link #writeSetup}, e.g. while the next one is computed,
+ * followed by {@link #writeXml}.
+ */
+public abstract class BdvN5Writer
+{
+	public static final int DEFAULT_NUM_LEVELS = 4;
+
+	/**
+	 * @param xmlPath
+	 * 			the N5 container is written next to it, with the extension .n5 instead of .xml
+	 * @param images
+	 * 			one image per view setup
+	 * @param factors
+	 * 			downsampling factors from one level to the next
+	 * @param resume
+	 * 			see {@link #writeSetup}
+	 */
+	public static < T extends RealType< T > & NativeType< T > >
+	void write(
+			List< RandomAccessibleInterval< T > > images,
+			String xmlPath,
+			double[] voxelSize,
+			String unit,
+			long[] factors,
+			int numLevels,
+			int[] chunkSize,
+			Compression compression,
+			boolean resume,
+			int numThreads ) throws IOException
+	{
+		final String n5Path = n5Path( xmlPath );
+
+		for ( int setup = 0; setup < images.size(); ++setup )
+			writeSetup( images.get( setup ), n5Path, setup, factors, numLevels, chunkSize, compression, resume, numThreads );
+
+		writeXml( images, xmlPath, voxelSize, unit );
+	}
+
+	/**
+	 * @return the path of the N5 container next to the XML file
+	 */
+	public static String n5Path( String xmlPath )
+	{
+		return xmlPath.replaceAll( "\\.xml$", "" ) + ".n5";
+	}
+
+	/**
+	 * Writes all resolution levels of one view setup; the image is only read once, chunk by chunk,
+	 * e.g. from a lazy view or a cached cell image whose cells are computed on demand.
+	 *
+	 * @param resume
+	 * 			if true, chunks that an interrupted export of the same image has written are kept,
+	 * 			see {@link N5ChunkWriter#write}; otherwise an existing setup is removed first,
+	 * 			such that no chunks of a previous export remain
+	 */
+	public static < T extends RealType< T > & NativeType< T > >
+	void writeSetup(
+			RandomAccessibleInterval< T > image,
+			String n5Path,
+			int setup,
+			long[] factors,
+			int numLevels,
+			int[] chunkSize,
+			Compression compression,
+			boolean resume,
+			int numThreads ) throws IOException
+	{
+		final N5Writer n5 = new N5FSWriter( n5Path );
+		final long cacheSizeInBytes = Scalings.defaultCacheSizeInBytes();
+
+		final int n = factors.length;
+		final double[][] downsamplingFactors = new double[ numLevels ][ n ];
+		for ( int level = 0; level < numLevels; ++level )
+			for ( int d = 0; d < n; ++d )
+				downsamplingFactors[ level ][ d ] = Math.pow( factors[ d ], level );
+
+		final String setupGroup = "setup" + setup;
+		if ( ! resume && n5.exists( setupGroup ) )
+			n5.remove( setupGroup );
+
+		n5.createGroup( setupGroup );
+		n5.setAttribute( setupGroup, "downsamplingFactors", downsamplingFactors );
+		n5.setAttribute( setupGroup, "dataType",
+				N5ChunkWriter.dataType( Util.getTypeFromInterval( image ) ).toString() );
+
+		RandomAccessibleInterval< T > level = image;
+		for ( int l = 0; l < numLevels; ++l )
+		{
+			final String dataset = setupGroup + "/timepoint0/s" + l;
+			Logger.log( "Saving: " + n5Path + "/" + dataset );
+
+			if ( l > 0 )
+			{
+				final RandomAccessibleInterval< T > previous = N5ChunkWriter.open(
+						n5Path, setupGroup + "/timepoint0/s" + ( l - 1 ), cacheSizeInBytes );
+				level = Scalings.createDownsampledLevel( previous, factors, cacheSizeInBytes );
+			}
+
+			N5ChunkWriter.write( level, n5Path, dataset, chunkSize, compression, resume, numThreads );
+			n5.setAttribute( dataset, "downsamplingFactors", downsamplingFactors[ l ] );
+		}
+	}
+
+	/**
+	 * Writes the BigDataViewer XML for the setups written by {@link #writeSetup},
+	 * with an N5 image loader, one timepoint, and the voxel size as view registration.
+	 *
+	 * @param intervals
+	 * 			the full resolution interval of each view setup, in the order of the setup ids
+	 */
+	public static void writeXml(
+			List< ? extends Interval > intervals,
+			String xmlPath,
+			double[] voxelSize,
+			String unit ) throws IOException
+	{
+		final File basePath = new File( xmlPath ).getAbsoluteFile().getParentFile();
+
+		final HashMap< Integer, BasicViewSetup > setups = new HashMap<>();
+		final ArrayList< ViewRegistration > registrations = new ArrayList<>();
+		for ( int setup = 0; setup < intervals.size(); ++setup )
+		{
+			setups.put( setup, new BasicViewSetup(
+					setup,
+					Integer.toString( setup ),
+					new FinalDimensions( intervals.get( setup ) ),
+					new FinalVoxelDimensions( unit, voxelSize ) ) );
+
+			final AffineTransform3D scaling = new AffineTransform3D();
+			scaling.set( voxelSize[ 0 ], 0, 0, 0, 0, voxelSize[ 1 ], 0, 0, 0, 0, voxelSize[ 2 ], 0 );
+			registrations.add( new ViewRegistration( 0, setup, scaling ) );
+		}
+
+		final SequenceDescriptionMinimal sequenceDescription = new SequenceDescriptionMinimal(
+				new TimePoints( Collections.singletonList( new TimePoint( 0 ) ) ),
+				setups,
+				null,
+				null );
+		sequenceDescription.setImgLoader( new N5ImageLoader( new File( n5Path( xmlPath ) ), sequenceDescription ) );
+
+		final SpimDataMinimal spimData = new SpimDataMinimal(
+				basePath,
+				sequenceDescription,
+				new ViewRegistrations( registrations ) );
+
+		try
+		{
+			new XmlIoSpimDataMinimal().save( spimData, xmlPath );
+		}
+		catch ( SpimDataException e )
+		{
+			throw new IOException( "Could not write " + xmlPath, e );
+		}
+	}
+}
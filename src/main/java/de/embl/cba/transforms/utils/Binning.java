@@ -0,0 +1,320 @@
+package de.embl.cba.transforms.utils;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+import java.util.Arrays;
+
+/**
+ * Downsampling by integer factors, combining each block of factors[ 0 ] x factors[ 1 ] x ...
+ * input voxels into one output voxel.
+ *
+ * Output voxel o covers the input voxels from input.min + o * factors to
+ * input.min + ( o + 1 ) * factors - 1; blocks at the border of the input may be partial.
+ * The input is streamed once, accumulating into primitive arrays per output slab.
+ */
+public abstract class Binning
+{
+	public enum Mode
+	{
+		AVERAGE,
+		MAX,
+		MIN,
+		/**
+		 * Most frequent value, e.g. for label images.
+		 */
+		MODE
+	}
+
+	public static < T extends RealType< T > & NativeType< T > >
+	RandomAccessibleInterval< T > bin(
+			RandomAccessibleInterval< T > input,
+			long[] factors,
+			Mode mode,
+			int numThreads )
+	{
+		final RandomAccessibleInterval< T > output =
+				ImageCreators.createEmptyImg( binnedInterval( input, factors ), input.randomAccess().get() );
+
+		bin( input, factors, mode, output, numThreads );
+
+		return output;
+	}
+
+	/**
+	 * Bins the part of the output that is given by the target interval, in parallel,
+	 * e.g. one output plane of an input that is computed slab by slab.
+	 */
+	public static < T extends RealType< T > >
+	void bin(
+			RandomAccessibleInterval< T > input,
+			long[] factors,
+			Mode mode,
+			RandomAccessibleInterval< T > target,
+			int numThreads )
+	{
+		// one output slab per block, split along the last dimension that is not flat, e.g. rows of a single plane
+		final int n = target.numDimensions();
+		final int[] blockSize = new int[ n ];
+		for ( int d = 0; d < n; ++d )
+			blockSize[ d ] = ( int ) target.dimension( d );
+
+		for ( int d = n - 1; d > 0; --d )
+			if ( target.dimension( d ) > 1 )
+			{
+				blockSize[ d ] = 1;
+				break;
+			}
+
+		Resampler.forEachBlock(
+				target,
+				blockSize,
+				numThreads,
+				() -> new BinningWorker<>( input, factors, mode, target ) );
+	}
+
+	/**
+	 * Bins the part of the output that is given by the target interval.
+	 */
+	public static < T extends RealType< T > >
+	void bin(
+			RandomAccessibleInterval< T > input,
+			long[] factors,
+			Mode mode,
+			RandomAccessibleInterval< T > target )
+	{
+		new BinningWorker<>( input, factors, mode, target ).process( target );
+	}
+
+	/**
+	 * @return the zero-min output interval, which has the same size as {@code Views.subsample( input, factors )}
+	 */
+	public static FinalInterval binnedInterval( Interval input, long[] factors )
+	{
+		final long[] dimensions = new long[ input.numDimensions() ];
+		for ( int d = 0; d < dimensions.length; ++d )
+			dimensions[ d ] = ( input.dimension( d ) - 1 ) / factors[ d ] + 1;
+
+		return new FinalInterval( dimensions );
+	}
+
+	private static class BinningWorker< T extends RealType< T > > implements Resampler.BlockWorker
+	{
+		private final RandomAccessibleInterval< T > input;
+		private final long[] factors;
+		private final Mode mode;
+		private final RandomAccess< T > in;
+		private final RandomAccess< T > out;
+		private final int n;
+
+		private final long[] regionMin;
+		private final long[] regionMax;
+		private final long[] position;
+		private final long[] blockPosition;
+		private final int[] strides;
+
+		private double[] values;
+		private int[] counts;
+		private int[] xIndices;
+
+		BinningWorker(
+				RandomAccessibleInterval< T > input,
+				long[] factors,
+				Mode mode,
+				RandomAccessibleInterval< T > output )
+		{
+			this.input = input;
+			this.factors = factors;
+			this.mode = mode;
+			this.in = input.randomAccess();
+			this.out = output.randomAccess();
+			this.n = input.numDimensions();
+
+			regionMin = new long[ n ];
+			regionMax = new long[ n ];
+			position = new long[ n ];
+			blockPosition = new long[ n ];
+			strides = new int[ n ];
+			values = new double[ 0 ];
+			counts = new int[ 0 ];
+			xIndices = new int[ 0 ];
+		}
+
+		@Override
+		public void process( Interval block )
+		{
+			int size = 1;
+			for ( int d = 0; d < n; ++d )
+			{
+				strides[ d ] = size;
+				size *= block.dimension( d );
+
+				regionMin[ d ] = input.min( d ) + block.min( d ) * factors[ d ];
+				regionMax[ d ] = Math.min( input.max( d ), input.min( d ) + ( block.max( d ) + 1 ) * factors[ d ] - 1 );
+			}
+
+			if ( values.length < size )
+			{
+				values = new double[ size ];
+				counts = new int[ size ];
+			}
+
+			if ( mode.equals( Mode.MODE ) )
+				mode( block, size );
+			else
+				accumulate( size );
+
+			write( block, size );
+		}
+
+		private void accumulate( int size )
+		{
+			Arrays.fill( values, 0, size,
+					mode.equals( Mode.MAX ) ? Double.NEGATIVE_INFINITY
+					: mode.equals( Mode.MIN ) ? Double.POSITIVE_INFINITY : 0 );
+			Arrays.fill( counts, 0, size, 0 );
+
+			for ( int d = 0; d < n; ++d )
+				if ( regionMin[ d ] > regionMax[ d ] )
+				{
+					Arrays.fill( values, 0, size, 0 );
+					return;
+				}
+
+			final FinalInterval region = new FinalInterval( regionMin, regionMax );
+			final int rowLength = ( int ) ( regionMax[ 0 ] - regionMin[ 0 ] + 1 );
+			if ( xIndices.length < rowLength ) xIndices = new int[ rowLength ];
+			for ( int x = 0; x < rowLength; ++x )
+				xIndices[ x ] = ( int ) ( x / factors[ 0 ] );
+
+			System.arraycopy( regionMin, 0, position, 0, n );
+
+			do
+			{
+				int offset = 0;
+				for ( int d = 1; d < n; ++d )
+					offset += ( int ) ( ( position[ d ] - regionMin[ d ] ) / factors[ d ] ) * strides[ d ];
+
+				in.setPosition( position );
+
+				for ( int x = 0; x < rowLength; ++x )
+				{
+					final int index = offset + xIndices[ x ];
+					final double value = in.get().getRealDouble();
+
+					switch ( mode )
+					{
+						case MAX:
+							if ( value > values[ index ] ) values[ index ] = value;
+							break;
+						case MIN:
+							if ( value < values[ index ] ) values[ index ] = value;
+							break;
+						default:
+							values[ index ] += value;
+					}
+
+					counts[ index ]++;
+					in.fwd( 0 );
+				}
+			}
+			while ( Resampler.nextRow( position, region ) );
+
+			for ( int i = 0; i < size; ++i )
+			{
+				if ( counts[ i ] == 0 )
+					values[ i ] = 0;
+				else if ( mode.equals( Mode.AVERAGE ) )
+					values[ i ] /= counts[ i ];
+			}
+		}
+
+		private void mode( Interval block, int size )
+		{
+			int blockVolume = 1;
+			for ( int d = 0; d < n; ++d )
+				blockVolume *= factors[ d ];
+
+			final double[] samples = new double[ blockVolume ];
+			final long[] min = new long[ n ];
+			final long[] max = new long[ n ];
+
+			block.min( blockPosition );
+			for ( int i = 0; i < size; ++i )
+			{
+				boolean isEmpty = false;
+				for ( int d = 0; d < n; ++d )
+				{
+					min[ d ] = input.min( d ) + blockPosition[ d ] * factors[ d ];
+					max[ d ] = Math.min( input.max( d ), min[ d ] + factors[ d ] - 1 );
+					isEmpty |= min[ d ] > max[ d ];
+				}
+
+				values[ i ] = isEmpty ? 0 : mostFrequentValue( new FinalInterval( min, max ), samples );
+
+				nextPosition( blockPosition, block );
+			}
+		}
+
+		private double mostFrequentValue( Interval region, double[] samples )
+		{
+			int numSamples = 0;
+			region.min( position );
+			do
+			{
+				in.setPosition( position );
+				for ( long x = 0; x < region.dimension( 0 ); ++x )
+				{
+					samples[ numSamples++ ] = in.get().getRealDouble();
+					in.fwd( 0 );
+				}
+			}
+			while ( Resampler.nextRow( position, region ) );
+
+			Arrays.sort( samples, 0, numSamples );
+
+			double mostFrequent = samples[ 0 ];
+			int maxCount = 0;
+			for ( int i = 0, count = 0; i < numSamples; ++i )
+			{
+				count = i > 0 && samples[ i ] == samples[ i - 1 ] ? count + 1 : 1;
+				if ( count > maxCount )
+				{
+					maxCount = count;
+					mostFrequent = samples[ i ];
+				}
+			}
+
+			return mostFrequent;
+		}
+
+		private void write( Interval block, int size )
+		{
+			block.min( blockPosition );
+			for ( int i = 0; i < size; ++i )
+			{
+				out.setPosition( blockPosition );
+				out.get().setReal( values[ i ] );
+				nextPosition( blockPosition, block );
+			}
+		}
+
+		private static void nextPosition( long[] position, Interval interval )
+		{
+			for ( int d = 0; d < position.length; ++d )
+			{
+				if ( position[ d ] < interval.max( d ) )
+				{
+					position[ d ]++;
+					return;
+				}
+
+				position[ d ] = interval.min( d );
+			}
+		}
+	}
+}
@@ -0,0 +1,221 @@
+package de.embl.cba.transforms.utils;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.Interval;
+import net.imglib2.RealInterval;
+import net.imglib2.realtransform.AffineGet;
+import net.imglib2.realtransform.RealTransform;
+
+import java.util.Arrays;
+
+/**
+ * Bounding boxes of transformed intervals.
+ *
+ * For affine transforms the bounds are computed analytically and are exact.
+ * For other transforms, e.g. thin-plate splines, they are estimated by transforming
+ * a regular grid of points on the surface of the interval, in parallel, and adding a margin.
+ * This misses extrema of strongly folding transforms that lie in between the samples
+ * or in the interior of the interval; denser sampling or a larger margin reduces the risk.
+ */
+public abstract class Bounds
+{
+	public static final int DEFAULT_SAMPLES_PER_EDGE = 32;
+	public static final double DEFAULT_MARGIN = 1.0;
+
+	/**
+	 * Coordinates within this distance of an integer are rounded to it,
+	 * such that rounding errors of the transform do not add voxels.
+	 */
+	public static final double EPSILON = 1.0E-6;
+
+	/**
+	 * @return the exact bounds for affine transforms, sampled bounds with default settings otherwise
+	 */
+	public static FinalRealInterval estimate( RealInterval interval, RealTransform transform )
+	{
+		if ( transform instanceof AffineGet )
+			return affine( interval, ( AffineGet ) transform );
+
+		return sample(
+				interval,
+				transform,
+				DEFAULT_SAMPLES_PER_EDGE,
+				DEFAULT_MARGIN,
+				Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 * Each output coordinate is a sum of terms a_ij x_j, of which the minimum and maximum
+	 * over the interval are attained at either end of x_j.
+	 */
+	public static FinalRealInterval affine( RealInterval interval, AffineGet affine )
+	{
+		final int numSourceDimensions = affine.numSourceDimensions();
+		final int numTargetDimensions = affine.numTargetDimensions();
+
+		final double[] min = new double[ numTargetDimensions ];
+		final double[] max = new double[ numTargetDimensions ];
+
+		for ( int i = 0; i < numTargetDimensions; ++i )
+		{
+			min[ i ] = max[ i ] = affine.get( i, numSourceDimensions );
+
+			for ( int j = 0; j < numSourceDimensions; ++j )
+			{
+				final double a = affine.get( i, j ) * interval.realMin( j );
+				final double b = affine.get( i, j ) * interval.realMax( j );
+				min[ i ] += Math.min( a, b );
+				max[ i ] += Math.max( a, b );
+			}
+		}
+
+		return new FinalRealInterval( min, max );
+	}
+
+	/**
+	 * Transforms the points of a regular grid on the surface of the interval.
+	 *
+	 * @param samplesPerEdge
+	 * 			number of grid points along each edge of the interval, including both ends (at least 2)
+	 * @param margin
+	 * 			added to both sides of the sampled bounds, in target units
+	 */
+	public static FinalRealInterval sample(
+			RealInterval interval,
+			RealTransform transform,
+			int samplesPerEdge,
+			double margin,
+			int numThreads )
+	{
+		if ( samplesPerEdge < 2 )
+			throw new IllegalArgumentException( "At least 2 samples per edge are needed: " + samplesPerEdge );
+
+		final int n = interval.numDimensions();
+		final double[] min = new double[ transform.numTargetDimensions() ];
+		final double[] max = new double[ transform.numTargetDimensions() ];
+		Arrays.fill( min, Double.POSITIVE_INFINITY );
+		Arrays.fill( max, Double.NEGATIVE_INFINITY );
+
+		final long[] gridMax = new long[ n ];
+		Arrays.fill( gridMax, samplesPerEdge - 1 );
+
+		Resampler.forEachBlock(
+				new FinalInterval( new long[ n ], gridMax ),
+				Resampler.defaultBlockSize( n ),
+				numThreads,
+				() -> new SurfaceSampler( interval, transform.copy(), samplesPerEdge, min, max ) );
+
+		for ( int d = 0; d < min.length; ++d )
+		{
+			min[ d ] -= margin;
+			max[ d ] += margin;
+		}
+
+		return new FinalRealInterval( min, max );
+	}
+
+	/**
+	 * @return the smallest integer interval that contains the real interval, i.e. including partially covered voxels
+	 */
+	public static FinalInterval smallestContainingInterval( RealInterval realInterval )
+	{
+		final int n = realInterval.numDimensions();
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = ( long ) Math.floor( realInterval.realMin( d ) + EPSILON );
+			max[ d ] = ( long ) Math.ceil( realInterval.realMax( d ) - EPSILON );
+		}
+
+		return new FinalInterval( min, max );
+	}
+
+	/**
+	 * Visits the grid points of a block, of which only those on the surface of the grid are transformed.
+	 */
+	private static class SurfaceSampler implements Resampler.BlockWorker
+	{
+		private final RealInterval interval;
+		private final RealTransform transform;
+		private final long lastSample;
+		private final double[] spacing;
+		private final double[] sharedMin;
+		private final double[] sharedMax;
+
+		private final long[] position;
+		private final double[] source;
+		private final double[] target;
+		private final double[] min;
+		private final double[] max;
+
+		SurfaceSampler(
+				RealInterval interval,
+				RealTransform transform,
+				int samplesPerEdge,
+				double[] sharedMin,
+				double[] sharedMax )
+		{
+			this.interval = interval;
+			this.transform = transform;
+			this.lastSample = samplesPerEdge - 1;
+			this.sharedMin = sharedMin;
+			this.sharedMax = sharedMax;
+
+			final int n = interval.numDimensions();
+			spacing = new double[ n ];
+			for ( int d = 0; d < n; ++d )
+				spacing[ d ] = ( interval.realMax( d ) - interval.realMin( d ) ) / lastSample;
+
+			position = new long[ n ];
+			source = new double[ n ];
+			target = new double[ transform.numTargetDimensions() ];
+			min = new double[ target.length ];
+			max = new double[ target.length ];
+		}
+
+		@Override
+		public void process( Interval block )
+		{
+			Arrays.fill( min, Double.POSITIVE_INFINITY );
+			Arrays.fill( max, Double.NEGATIVE_INFINITY );
+
+			block.min( position );
+
+			do
+			{
+				boolean rowOnSurface = false;
+				for ( int d = 1; d < position.length; ++d )
+				{
+					source[ d ] = interval.realMin( d ) + position[ d ] * spacing[ d ];
+					rowOnSurface |= position[ d ] == 0 || position[ d ] == lastSample;
+				}
+
+				for ( long x = block.min( 0 ); x <= block.max( 0 ); ++x )
+					if ( rowOnSurface || x == 0 || x == lastSample )
+					{
+						source[ 0 ] = interval.realMin( 0 ) + x * spacing[ 0 ];
+						transform.apply( source, target );
+
+						for ( int d = 0; d < target.length; ++d )
+						{
+							min[ d ] = Math.min( min[ d ], target[ d ] );
+							max[ d ] = Math.max( max[ d ], target[ d ] );
+						}
+					}
+			}
+			while ( Resampler.nextRow( position, block ) );
+
+			synchronized ( sharedMin )
+			{
+				for ( int d = 0; d < target.length; ++d )
+				{
+					sharedMin[ d ] = Math.min( sharedMin[ d ], min[ d ] );
+					sharedMax[ d ] = Math.max( sharedMax[ d ], max[ d ] );
+				}
+			}
+		}
+	}
+}
@@ -5,6 +5,11 @@ import net.imglib2.Interval;
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * @deprecated the bounds of transformed intervals are computed by {@link Bounds#estimate},
+ * which is exact for affine transforms without enumerating the corners.
+ */
+@Deprecated
 public class Corners
 {
     public static final int MIN = 0;
@@ -0,0 +1,326 @@
+package de.embl.cba.transforms.utils;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RealInterval;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
+import net.imglib2.realtransform.RealTransform;
+
+/**
+ * Approximates a 3D {@link RealTransform} by trilinear interpolation of its displacements,
+ * which are sampled once on a regular grid and stored as float arrays.
+ *
+ * Evaluating the approximation costs the same for every transform, e.g. independent of the number
+ * of landmarks of a {@link net.imglib2.realtransform.ThinplateSplineTransform}, for which the exact
+ * evaluation costs O(number of landmarks) per voxel.
+ *
+ * {@link #getEstimatedMaxError()} is the largest distance between the approximation and the transform
+ * at the centers of the grid cells and of their faces and edges, where the interpolation error of smooth
+ * transforms is largest. It is an estimate, not a bound: transforms that vary faster than the grid spacing
+ * can deviate more in between. A finer grid spacing reduces it.
+ *
+ * Outside of the grid the displacement of the nearest grid border is used, i.e. the approximation
+ * continues as a translation, whose error is unbounded and not covered by the estimate.
+ * The grid should thus cover all points that are transformed.
+ */
+public class DisplacementFieldCache implements RealTransform
+{
+	private final double[] origin;
+	private final double[] spacing;
+	private final int[] dimensions;
+	private final float[][] displacements;
+	private double maxError;
+
+	private final double[] sourceBuffer = new double[ 3 ];
+	private final double[] targetBuffer = new double[ 3 ];
+
+	private DisplacementFieldCache(
+			double[] origin,
+			double[] spacing,
+			int[] dimensions,
+			float[][] displacements,
+			double maxError )
+	{
+		this.origin = origin;
+		this.spacing = spacing;
+		this.dimensions = dimensions;
+		this.displacements = displacements;
+		this.maxError = maxError;
+	}
+
+	/**
+	 * Samples the transform on a grid that covers the interval.
+	 *
+	 * @param spacing
+	 * 			distance between grid points along each axis, in source units
+	 */
+	public static DisplacementFieldCache create(
+			RealTransform transform,
+			RealInterval interval,
+			double[] spacing,
+			int numThreads )
+	{
+		if ( transform.numSourceDimensions() != 3 || transform.numTargetDimensions() != 3 )
+			throw new IllegalArgumentException( "Only 3D transforms are supported." );
+
+		final double[] origin = new double[ 3 ];
+		final int[] dimensions = new int[ 3 ];
+		long numPoints = 1;
+		for ( int d = 0; d < 3; ++d )
+		{
+			origin[ d ] = interval.realMin( d );
+			final long n = Math.max( 2, ( long ) Math.ceil( ( interval.realMax( d ) - origin[ d ] ) / spacing[ d ] ) + 1 );
+			numPoints *= n;
+			if ( numPoints > Integer.MAX_VALUE )
+				throw new IllegalArgumentException( "Grid spacing is too fine for the interval." );
+			dimensions[ d ] = ( int ) n;
+		}
+
+		final float[][] displacements = new float[ 3 ][ ( int ) numPoints ];
+		final DisplacementFieldCache cache =
+				new DisplacementFieldCache( origin, spacing.clone(), dimensions, displacements, 0 );
+
+		Resampler.forEachBlock(
+				new FinalInterval( dimensions[ 0 ], dimensions[ 1 ], dimensions[ 2 ] ),
+				Resampler.defaultBlockSize( 3 ),
+				numThreads,
+				() -> new GridSampler( cache, transform.copy() ) );
+
+		final double[] maxError = new double[ 1 ];
+		Resampler.forEachBlock(
+				new FinalInterval( dimensions[ 0 ], dimensions[ 1 ], dimensions[ 2 ] ),
+				Resampler.defaultBlockSize( 3 ),
+				numThreads,
+				() -> new ErrorSampler( cache.copy(), transform.copy(), maxError ) );
+		cache.maxError = maxError[ 0 ];
+
+		return cache;
+	}
+
+	/**
+	 * Samples the transform on grids that cover the interval, halving the grid spacing,
+	 * starting from a quarter of the interval, until {@link #getEstimatedMaxError()} is within the tolerance.
+	 *
+	 * @param maxError
+	 * 			tolerated deviation from the transform, in target units; it should be well above
+	 * 			the float precision of the displacements
+	 * @throws IllegalArgumentException if the tolerance needs more than {@link Integer#MAX_VALUE} grid points
+	 */
+	public static DisplacementFieldCache create(
+			RealTransform transform,
+			RealInterval interval,
+			double maxError,
+			int numThreads )
+	{
+		final double[] spacing = new double[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			spacing[ d ] = Math.max( interval.realMax( d ) - interval.realMin( d ), 1 ) / 4;
+
+		while ( true )
+		{
+			final DisplacementFieldCache cache = create( transform, interval, spacing, numThreads );
+			if ( cache.maxError <= maxError ) return cache;
+
+			for ( int d = 0; d < 3; ++d )
+				spacing[ d ] /= 2;
+		}
+	}
+
+	/**
+	 * @return the largest deviation from the original transform at the centers of the grid cells,
+	 * faces and edges, in target units; an estimate of the error within the grid, not a bound
+	 */
+	public double getEstimatedMaxError()
+	{
+		return maxError;
+	}
+
+	@Override
+	public int numSourceDimensions()
+	{
+		return 3;
+	}
+
+	@Override
+	public int numTargetDimensions()
+	{
+		return 3;
+	}
+
+	@Override
+	public void apply( double[] source, double[] target )
+	{
+		final int nx = dimensions[ 0 ];
+		final int nxy = nx * dimensions[ 1 ];
+
+		final double fx = gridCoordinate( source, 0 );
+		final double fy = gridCoordinate( source, 1 );
+		final double fz = gridCoordinate( source, 2 );
+
+		final int x0 = Math.min( ( int ) fx, dimensions[ 0 ] - 2 );
+		final int y0 = Math.min( ( int ) fy, dimensions[ 1 ] - 2 );
+		final int z0 = Math.min( ( int ) fz, dimensions[ 2 ] - 2 );
+
+		final double wx = fx - x0;
+		final double wy = fy - y0;
+		final double wz = fz - z0;
+
+		final int i = x0 + nx * y0 + nxy * z0;
+
+		for ( int d = 0; d < 3; ++d )
+		{
+			final float[] f = displacements[ d ];
+
+			final double c00 = f[ i ] + wx * ( f[ i + 1 ] - f[ i ] );
+			final double c10 = f[ i + nx ] + wx * ( f[ i + nx + 1 ] - f[ i + nx ] );
+			final double c01 = f[ i + nxy ] + wx * ( f[ i + nxy + 1 ] - f[ i + nxy ] );
+			final double c11 = f[ i + nxy + nx ] + wx * ( f[ i + nxy + nx + 1 ] - f[ i + nxy + nx ] );
+
+			final double c0 = c00 + wy * ( c10 - c00 );
+			final double c1 = c01 + wy * ( c11 - c01 );
+
+			target[ d ] = source[ d ] + c0 + wz * ( c1 - c0 );
+		}
+	}
+
+	@Override
+	public void apply( RealLocalizable source, RealPositionable target )
+	{
+		source.localize( sourceBuffer );
+		apply( sourceBuffer, targetBuffer );
+		target.setPosition( targetBuffer );
+	}
+
+	/**
+	 * @return a transform that shares the displacement field, for use in another thread
+	 */
+	@Override
+	public DisplacementFieldCache copy()
+	{
+		return new DisplacementFieldCache( origin, spacing, dimensions, displacements, maxError );
+	}
+
+	/**
+	 * @return the position in grid units, clamped to the grid
+	 */
+	private double gridCoordinate( double[] source, int d )
+	{
+		final double f = ( source[ d ] - origin[ d ] ) / spacing[ d ];
+		return Math.max( 0, Math.min( dimensions[ d ] - 1, f ) );
+	}
+
+	private static class GridSampler implements Resampler.BlockWorker
+	{
+		private final DisplacementFieldCache cache;
+		private final RealTransform transform;
+		private final long[] position = new long[ 3 ];
+		private final double[] source = new double[ 3 ];
+		private final double[] target = new double[ 3 ];
+
+		GridSampler( DisplacementFieldCache cache, RealTransform transform )
+		{
+			this.cache = cache;
+			this.transform = transform;
+		}
+
+		@Override
+		public void process( Interval block )
+		{
+			final int nx = cache.dimensions[ 0 ];
+			final int nxy = nx * cache.dimensions[ 1 ];
+			block.min( position );
+
+			do
+			{
+				for ( long x = block.min( 0 ); x <= block.max( 0 ); ++x )
+				{
+					position[ 0 ] = x;
+					for ( int d = 0; d < 3; ++d )
+						source[ d ] = cache.origin[ d ] + position[ d ] * cache.spacing[ d ];
+
+					transform.apply( source, target );
+
+					final int i = ( int ) ( x + nx * position[ 1 ] + nxy * position[ 2 ] );
+					for ( int d = 0; d < 3; ++d )
+						cache.displacements[ d ][ i ] = ( float ) ( target[ d ] - source[ d ] );
+				}
+				position[ 0 ] = block.min( 0 );
+			}
+			while ( Resampler.nextRow( position, block ) );
+		}
+	}
+
+	/**
+	 * Compares the approximation with the transform at the centers of the cells, faces and edges
+	 * next to each grid point, i.e. at the grid point plus half a spacing along one or more axes.
+	 */
+	private static class ErrorSampler implements Resampler.BlockWorker
+	{
+		private final DisplacementFieldCache cache;
+		private final RealTransform transform;
+		private final double[] sharedMaxError;
+		private final long[] position = new long[ 3 ];
+		private final double[] source = new double[ 3 ];
+		private final double[] exact = new double[ 3 ];
+		private final double[] approximated = new double[ 3 ];
+
+		ErrorSampler( DisplacementFieldCache cache, RealTransform transform, double[] sharedMaxError )
+		{
+			this.cache = cache;
+			this.transform = transform;
+			this.sharedMaxError = sharedMaxError;
+		}
+
+		@Override
+		public void process( Interval block )
+		{
+			double maxSquaredError = 0;
+			block.min( position );
+
+			do
+			{
+				for ( long x = block.min( 0 ); x <= block.max( 0 ); ++x )
+				{
+					position[ 0 ] = x;
+
+					for ( int offset = 1; offset < 8; ++offset )
+					{
+						if ( ! setSource( offset ) ) continue;
+
+						transform.apply( source, exact );
+						cache.apply( source, approximated );
+
+						double squaredError = 0;
+						for ( int d = 0; d < 3; ++d )
+							squaredError += ( exact[ d ] - approximated[ d ] ) * ( exact[ d ] - approximated[ d ] );
+						maxSquaredError = Math.max( maxSquaredError, squaredError );
+					}
+				}
+				position[ 0 ] = block.min( 0 );
+			}
+			while ( Resampler.nextRow( position, block ) );
+
+			synchronized ( sharedMaxError )
+			{
+				sharedMaxError[ 0 ] = Math.max( sharedMaxError[ 0 ], Math.sqrt( maxSquaredError ) );
+			}
+		}
+
+		/**
+		 * @param offset
+		 * 			bit d set: half a spacing along d
+		 * @return false if the offset point is outside of the grid
+		 */
+		private boolean setSource( int offset )
+		{
+			for ( int d = 0; d < 3; ++d )
+			{
+				final boolean half = ( offset & ( 1 << d ) ) != 0;
+				if ( half && position[ d ] >= cache.dimensions[ d ] - 1 ) return false;
+				source[ d ] = cache.origin[ d ] + ( position[ d ] + ( half ? 0.5 : 0 ) ) * cache.spacing[ d ];
+			}
+			return true;
+		}
+	}
+}
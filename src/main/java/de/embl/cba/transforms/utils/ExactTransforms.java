@@ -0,0 +1,120 @@
+package de.embl.cba.transforms.utils;
+
+import net.imglib2.RandomAccessible;
+import net.imglib2.realtransform.AffineGet;
+import net.imglib2.realtransform.RealTransform;
+import net.imglib2.view.Views;
+
+/**
+ * Detects transforms which map voxels exactly onto voxels, i.e. integer translations,
+ * axis permutations (e.g. 90 degree rotations) and axis flips, and expresses them as views,
+ * such that no interpolation is necessary.
+ */
+public abstract class ExactTransforms
+{
+	public static final double TOLERANCE = 1.0E-6;
+
+	/**
+	 * An affine transform x = A s + b where each row i of A has exactly one
+	 * non-zero entry +/-1 in column axes[ i ] and b is integer.
+	 */
+	public static class SignedPermutation
+	{
+		public final int[] axes;
+		public final boolean[] inverted;
+		public final long[] translation;
+
+		SignedPermutation( int[] axes, boolean[] inverted, long[] translation )
+		{
+			this.axes = axes;
+			this.inverted = inverted;
+			this.translation = translation;
+		}
+	}
+
+	public static boolean isExact( RealTransform transform )
+	{
+		return classify( transform, TOLERANCE ) != null;
+	}
+
+	/**
+	 * @return the signed permutation, or null if the transform does not map voxels exactly onto voxels
+	 */
+	public static SignedPermutation classify( RealTransform transform, double tolerance )
+	{
+		if ( ! ( transform instanceof AffineGet ) ) return null;
+
+		final AffineGet affine = ( AffineGet ) transform;
+		final int n = affine.numSourceDimensions();
+		if ( affine.numTargetDimensions() != n ) return null;
+
+		final int[] axes = new int[ n ];
+		final boolean[] inverted = new boolean[ n ];
+		final long[] translation = new long[ n ];
+		final boolean[] isUsed = new boolean[ n ];
+
+		for ( int i = 0; i < n; ++i )
+		{
+			axes[ i ] = -1;
+
+			for ( int j = 0; j < n; ++j )
+			{
+				final double a = affine.get( i, j );
+
+				if ( Math.abs( a ) <= tolerance ) continue;
+
+				if ( axes[ i ] != -1 || isUsed[ j ] || Math.abs( Math.abs( a ) - 1.0 ) > tolerance )
+					return null;
+
+				axes[ i ] = j;
+				inverted[ i ] = a < 0;
+				isUsed[ j ] = true;
+			}
+
+			if ( axes[ i ] == -1 ) return null;
+
+			final double b = affine.get( i, n );
+			translation[ i ] = Math.round( b );
+			if ( Math.abs( b - translation[ i ] ) > tolerance ) return null;
+		}
+
+		return new SignedPermutation( axes, inverted, translation );
+	}
+
+	/**
+	 * Re-indexes the source such that the voxel at target position x
+	 * is the source voxel s with x = A s + b.
+	 */
+	public static < T > RandomAccessible< T > createExactView(
+			RandomAccessible< T > source,
+			SignedPermutation permutation )
+	{
+		final int n = permutation.axes.length;
+
+		// order[ d ] is the source dimension currently shown as dimension d of the view
+		final int[] order = new int[ n ];
+		for ( int d = 0; d < n; ++d )
+			order[ d ] = d;
+
+		RandomAccessible< T > view = source;
+
+		for ( int i = 0; i < n; ++i )
+		{
+			int j = i;
+			while ( order[ j ] != permutation.axes[ i ] ) ++j;
+
+			if ( j != i )
+			{
+				view = Views.permute( view, i, j );
+				order[ j ] = order[ i ];
+				order[ i ] = permutation.axes[ i ];
+			}
+		}
+
+		for ( int d = 0; d < n; ++d )
+			if ( permutation.inverted[ d ] )
+				view = Views.invertAxis( view, d );
+
+		return Views.translate( view, permutation.translation );
+	}
+}
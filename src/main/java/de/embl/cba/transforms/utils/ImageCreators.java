@@ -1,5 +1,8 @@
 package de.embl.cba.transforms.utils;
 
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.AbstractImg;
 import net.imglib2.img.array.ArrayImgFactory;
@@ -8,9 +11,14 @@ import net.imglib2.loops.LoopBuilder;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.Random;
 
 public abstract class ImageCreators
 {
+	public static final int CELL_SIZE = 128;
+
 	public static < T extends RealType< T > & NativeType< T > >
 	RandomAccessibleInterval< T > copyAsArrayImg( RandomAccessibleInterval< T > orig )
 	{
@@ -52,4 +60,78 @@ public abstract class ImageCreators
 		newImage = Transforms.getWithAdjustedOrigin( volume, newImage );
 		return newImage;
 	}
+
+	public static < T extends NativeType< T > >
+	RandomAccessibleInterval< T > createEmptyImg( Interval interval, T type )
+	{
+		final long[] dimensions = Intervals.dimensionsAsLongArray( interval );
+
+		RandomAccessibleInterval< T > newImage;
+		if ( AbstractImg.numElements( dimensions ) < Integer.MAX_VALUE - 1 )
+			newImage = new ArrayImgFactory<>( type ).create( dimensions );
+		else
+			newImage = new CellImgFactory<>( type, CELL_SIZE ).create( dimensions );
+
+		newImage = Transforms.getWithAdjustedOrigin( interval, newImage );
+		return newImage;
+	}
+
+	public static < T extends NativeType< T > >
+	RandomAccessibleInterval< T > createEmptyCellImg( Interval interval, T type )
+	{
+		RandomAccessibleInterval< T > newImage = new CellImgFactory<>( type, CELL_SIZE )
+				.create( Intervals.dimensionsAsLongArray( interval ) );
+
+		newImage = Transforms.getWithAdjustedOrigin( interval, newImage );
+		return newImage;
+	}
+
+	/**
+	 * Reproducible test volume: smooth blobs on a gradient plus uniform noise,
+	 * spanning about half of the value range of the type (at most 0 to 1000 for float types).
+	 */
+	public static < T extends RealType< T > & NativeType< T > >
+	RandomAccessibleInterval< T > createSyntheticVolume( long[] dimensions, T type, long seed )
+	{
+		final RandomAccessibleInterval< T > volume = createEmptyImg( new FinalInterval( dimensions ), type );
+
+		final double maxValue = Math.min( type.getMaxValue(), 1000.0 ) / 2;
+		final int n = dimensions.length;
+
+		final Random random = new Random( seed );
+		final int numBlobs = 32;
+		final double[][] centers = new double[ numBlobs ][ n ];
+		final double[] radii = new double[ numBlobs ];
+		for ( int b = 0; b < numBlobs; ++b )
+		{
+			for ( int d = 0; d < n; ++d )
+				centers[ b ][ d ] = random.nextDouble() * dimensions[ d ];
+			radii[ b ] = 2 + random.nextDouble() * dimensions[ 0 ] / 8;
+		}
+
+		final Cursor< T > cursor = Views.flatIterable( volume ).localizingCursor();
+		final long[] position = new long[ n ];
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			cursor.localize( position );
+
+			double value = 0.2 * position[ 0 ] / dimensions[ 0 ];
+			for ( int b = 0; b < numBlobs; ++b )
+			{
+				double distanceSquared = 0;
+				for ( int d = 0; d < n; ++d )
+					distanceSquared += ( position[ d ] - centers[ b ][ d ] ) * ( position[ d ] - centers[ b ][ d ] );
+
+				if ( distanceSquared < radii[ b ] * radii[ b ] )
+					value += 0.6 * ( 1 - distanceSquared / ( radii[ b ] * radii[ b ] ) );
+			}
+
+			value += 0.2 * random.nextDouble();
+
+			cursor.get().setReal( Math.min( 1.0, value ) * maxValue );
+		}
+
+		return volume;
+	}
 }
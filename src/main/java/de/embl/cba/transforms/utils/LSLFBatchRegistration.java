@@ -0,0 +1,319 @@
+package de.embl.cba.transforms.utils;
+
+import mpicbg.spim.data.SpimData;
+import mpicbg.spim.data.SpimDataException;
+import mpicbg.spim.data.XmlIoSpimData;
+import mpicbg.spim.data.generic.sequence.ImgLoaders;
+import mpicbg.spim.data.sequence.ImgLoader;
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.ViewDescription;
+import mpicbg.spim.data.sequence.ViewSetup;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.interpolation.InterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.ClampingNLinearInterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import spim.fiji.spimdata.imgloaders.XmlIoStackImgLoaderIJ;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
+
+/**
+ * Registers all selected (timepoint, view setup) pairs of a BigDataViewer dataset in one process.
+ *
+ * The XML is parsed once and the jobs share a bounded pool: at most {@link #setNumConcurrentJobs}
+ * views are resampled at the same time, each with its share of the threads, and a job only starts
+ * when its input and output fit into {@link #setMaxInFlightBytes} together with those of the running jobs.
+ * Jobs are only submitted when a slot is free, such that no more inputs are pending than views are processed.
+ * Views that are missing or have no registration are skipped and reported.
+ *
+ * Each output is written as t{timepoint}_s{setup}_registered.tif into the output directory.
+ */
+public class LSLFBatchRegistration < T extends RealType< T > & NativeType< T > >
+{
+	public static final String ALL = "all";
+
+	private static final long MEGABYTE = 1024 * 1024;
+
+	private final String bdvXmlPath;
+	private final long[] min;
+	private final long[] max;
+	private final long[] subSampling;
+	private final InterpolatorFactory interpolatorFactory;
+	private final String outputDirectory;
+
+	private String timepointSelection = ALL;
+	private String setupSelection = ALL;
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+	private int numConcurrentJobs = 2;
+	private long maxInFlightBytes = Runtime.getRuntime().maxMemory() / 2;
+
+	public LSLFBatchRegistration(
+			String bdvXmlPath,
+			long[] imageIntervalMin,
+			long[] imageIntervalMax,
+			long[] subSampling,
+			InterpolatorFactory interpolatorFactory,
+			String outputDirectory )
+	{
+		this.bdvXmlPath = bdvXmlPath;
+		this.min = imageIntervalMin;
+		this.max = imageIntervalMax;
+		this.subSampling = subSampling;
+		this.interpolatorFactory = interpolatorFactory;
+		this.outputDirectory = outputDirectory;
+
+		// needed when packaging code into an executable jar
+		ImgLoaders.registerManually( XmlIoStackImgLoaderIJ.class );
+	}
+
+	/**
+	 * To call this class from the command line type:
+	 *
+	 * java -cp transforms-utils-0.2.01-jar-with-dependencies.jar de.embl.cba.transforms.utils.LSLFBatchRegistration
+	 * "dataset.xml" "0,0,0" "500,1000,300" "1,1,20" "Linear" "0-499" "all" "/output/directory"
+	 *
+	 * The timepoints and view setups are given by their ids, as comma separated list of ids
+	 * or ranges (e.g. "0,2,5-9"), or "all".
+	 */
+	public static < T extends RealType< T > & NativeType< T > >
+	void main( String[] args ) throws SpimDataException
+	{
+		int i = 0;
+		final String bdvXmlPath = args[ i++ ];
+		long[] min = Arrays.stream(args[ i++ ].split(","))
+				.mapToLong(Long::parseLong).toArray();
+		long[] max = Arrays.stream(args[ i++ ].split(","))
+				.mapToLong(Long::parseLong).toArray();
+		long[] subSampling = Arrays.stream(args[ i++ ].split(","))
+				.mapToLong(Long::parseLong).toArray();
+
+		final InterpolatorFactory interpolatorFactory;
+		final String interpolation = args[ i++ ];
+		if( interpolation.equals( LSLFRegistration.LINEAR_INTERPOLATION ) )
+		{
+			interpolatorFactory = new ClampingNLinearInterpolatorFactory();
+		}
+		else if( interpolation.equals( LSLFRegistration.FAST_LINEAR_INTERPOLATION ) )
+		{
+			interpolatorFactory = new PrimitiveNLinearInterpolatorFactory( true );
+		}
+		else
+		{
+			System.err.println( "interpolation method not supported" );
+			return;
+		}
+
+		final String timepoints = args[ i++ ];
+		final String setups = args[ i++ ];
+		final String outputDirectory = args[ i++ ];
+
+		final LSLFBatchRegistration< T > registration = new LSLFBatchRegistration<>(
+				bdvXmlPath,
+				min,
+				max,
+				subSampling,
+				interpolatorFactory,
+				outputDirectory );
+
+		registration.setTimepoints( timepoints );
+		registration.setViewSetups( setups );
+		registration.run();
+	}
+
+	public void setTimepoints( String timepointSelection )
+	{
+		this.timepointSelection = timepointSelection;
+	}
+
+	public void setViewSetups( String setupSelection )
+	{
+		this.setupSelection = setupSelection;
+	}
+
+	public void setNumThreads( int numThreads )
+	{
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * Number of views that are resampled at the same time; each gets numThreads / numConcurrentJobs threads.
+	 */
+	public void setNumConcurrentJobs( int numConcurrentJobs )
+	{
+		this.numConcurrentJobs = numConcurrentJobs;
+	}
+
+	/**
+	 * Maximal size of the inputs and outputs of all running jobs.
+	 * A job that alone is larger than that runs on its own.
+	 */
+	public void setMaxInFlightBytes( long maxInFlightBytes )
+	{
+		this.maxInFlightBytes = maxInFlightBytes;
+	}
+
+	public void run() throws SpimDataException
+	{
+		Logger.log( "Load dataset: " + bdvXmlPath );
+		final SpimData spimData = new XmlIoSpimData().load( bdvXmlPath );
+		final ImgLoader imgLoader = spimData.getSequenceDescription().getImgLoader();
+
+		final List< Integer > timepoints = select(
+				timepointSelection,
+				spimData.getSequenceDescription().getTimePoints().getTimePointsOrdered()
+						.stream().map( TimePoint::getId ).collect( Collectors.toList() ) );
+
+		final List< Integer > setups = select(
+				setupSelection,
+				spimData.getSequenceDescription().getViewSetupsOrdered()
+						.stream().map( ViewSetup::getId ).collect( Collectors.toList() ) );
+
+		final FinalInterval outputInterval = LSLFRegistration.createOutputGridInterval( min, max, subSampling );
+		final int threadsPerJob = Math.max( 1, numThreads / numConcurrentJobs );
+		final int maxInFlightMegabytes = ( int ) Math.min( Integer.MAX_VALUE, Math.max( 1, maxInFlightBytes / MEGABYTE ) );
+		final Semaphore inFlightMegabytes = new Semaphore( maxInFlightMegabytes, true );
+		final Semaphore jobSlots = new Semaphore( numConcurrentJobs );
+		final ArrayList< String > skipped = new ArrayList<>();
+
+		new File( outputDirectory ).mkdirs();
+
+		final ExecutorService executorService = Executors.newFixedThreadPool( numConcurrentJobs );
+		final ArrayList< Future< ? > > futures = new ArrayList<>();
+
+		try
+		{
+			for ( int timepoint : timepoints )
+				for ( int setup : setups )
+				{
+					final ViewDescription viewDescription =
+							spimData.getSequenceDescription().getViewDescription( timepoint, setup );
+					final ViewRegistration registration =
+							spimData.getViewRegistrations().getViewRegistration( timepoint, setup );
+
+					if ( viewDescription == null || ! viewDescription.isPresent() || registration == null )
+					{
+						final String view = "timepoint " + timepoint + ", view setup " + setup;
+						Logger.log( "Skipping " + view + ": "
+								+ ( registration == null ? "no registration" : "view missing" ) + " in " + bdvXmlPath );
+						skipped.add( view );
+						continue;
+					}
+
+					final AffineTransform3D transform = registration.getModel();
+					final Dimensions inputSize = viewDescription.getViewSetup().getSize();
+
+					// bounds the number of submitted, not yet finished jobs, and thereby of pending inputs
+					jobSlots.acquire();
+
+					futures.add( executorService.submit( () -> {
+						try
+						{
+							final T type = ( T ) imgLoader.getSetupImgLoader( setup ).getImageType();
+							long bytes = Intervals.numElements( outputInterval ) * type.getBitsPerPixel() / 8;
+							if ( inputSize != null )
+								bytes += Intervals.numElements( inputSize ) * type.getBitsPerPixel() / 8;
+							final int permits = ( int ) Math.min( maxInFlightMegabytes, bytes / MEGABYTE + 1 );
+
+							inFlightMegabytes.acquire( permits );
+							try
+							{
+								final RandomAccessibleInterval< T > image =
+										( RandomAccessibleInterval< T > ) imgLoader.getSetupImgLoader( setup ).getImage( timepoint );
+
+								process( image, transform, outputInterval, timepoint, setup, threadsPerJob );
+							}
+							finally
+							{
+								inFlightMegabytes.release( permits );
+							}
+							return null;
+						}
+						finally
+						{
+							jobSlots.release();
+						}
+					} ) );
+				}
+
+			for ( Future< ? > future : futures )
+				future.get();
+
+			if ( ! skipped.isEmpty() )
+				Logger.log( "Skipped " + skipped.size() + " views: " + String.join( "; ", skipped ) );
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			throw new RuntimeException( e );
+		}
+		finally
+		{
+			executorService.shutdownNow();
+		}
+	}
+
+	private void process(
+			RandomAccessibleInterval< T > image,
+			AffineTransform3D transform,
+			FinalInterval outputInterval,
+			int timepoint,
+			int setup,
+			int numThreads ) throws IOException
+	{
+		Logger.log( "Registering timepoint " + timepoint + ", view setup " + setup + ", using " + numThreads + " threads." );
+
+		final RandomAccessibleInterval< T > registered = Resampler.resample(
+				image,
+				LSLFRegistration.createOutputGridTransform( transform, min, subSampling ),
+				outputInterval,
+				interpolatorFactory,
+				numThreads );
+
+		final String outputPath = new File(
+				outputDirectory,
+				String.format( "t%05d_s%02d_registered.tif", timepoint, setup ) ).getPath();
+
+		Logger.log( "Saving: " + outputPath );
+		StreamingTiffWriter.write(
+				registered,
+				outputPath,
+				false,
+				numThreads,
+				LSLFRegistration.createOutputVoxelSize( subSampling ),
+				LSLFRegistration.OUTPUT_UNIT );
+	}
+
+	/**
+	 * @return the ids of the selection, e.g. "0,2,5-9" or "all", in the order of the available ids
+	 */
+	static List< Integer > select( String selection, List< Integer > available )
+	{
+		if ( selection.equals( ALL ) ) return available;
+
+		final ArrayList< Integer > selected = new ArrayList<>();
+		for ( String part : selection.split( "," ) )
+		{
+			final String[] range = part.trim().split( "-" );
+			final int first = Integer.parseInt( range[ 0 ].trim() );
+			final int last = range.length > 1 ? Integer.parseInt( range[ 1 ].trim() ) : first;
+			for ( int id = first; id <= last; ++id )
+				selected.add( id );
+		}
+
+		return available.stream().filter( selected::contains ).collect( Collectors.toList() );
+	}
+}
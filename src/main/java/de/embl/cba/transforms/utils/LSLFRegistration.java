@@ -5,8 +5,6 @@ import bdv.util.BdvHandle;
 import bdv.util.BdvOptions;
 import ij.IJ;
 import ij.ImagePlus;
-import ij.io.FileSaver;
-import itc.utilities.CopyUtils;
 import mpicbg.spim.data.SpimData;
 import mpicbg.spim.data.SpimDataException;
 import mpicbg.spim.data.XmlIoSpimData;
@@ -16,23 +14,51 @@ import mpicbg.spim.data.sequence.ImgLoader;
 import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.DiskCachedCellImgOptions.CacheType;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.interpolation.InterpolatorFactory;
 import net.imglib2.interpolation.randomaccess.ClampingNLinearInterpolatorFactory;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 import spim.fiji.spimdata.imgloaders.XmlIoStackImgLoaderIJ;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
 
 public class LSLFRegistration < T extends RealType< T > & NativeType< T > >
 {
 	public static final String LINEAR_INTERPOLATION = "Linear";
+	public static final String FAST_LINEAR_INTERPOLATION = "FastLinear";
+
+	/**
+	 * Unit of the output voxel size, which is given in voxels of the registration grid.
+	 */
+	public static final String OUTPUT_UNIT = "pixel";
+	public static final String SUBSAMPLE = "Subsample";
+	public static final String TIFF_OUTPUT = "Tiff";
+	public static final String N5_OUTPUT = "N5";
+	public static final String RESUME = "Resume";
+	public static final String LOAD_STAGE = "load";
+	public static final String TRANSFORM_STAGE = "transform";
+	public static final String SAVE_STAGE = "save";
 	private static InterpolatorFactory interpolatorFactory;
-	private ArrayList< RandomAccessibleInterval > images;
 	private String imagePathTarget;
 	private String imagePathSource;
 	private final String bdvXmlPath;
@@ -41,9 +67,18 @@ public class LSLFRegistration < T extends RealType< T > & NativeType< T > >
 	private long[] max;
 	private final long[] subSampling;
 	private ArrayList< String > inputImagePaths;
-	private static FinalInterval crop;
 	private boolean showImages;
 	private int numImages;
+	private Binning.Mode binningMode;
+	private boolean foldSubSampling = true;
+	private boolean compressOutput;
+	private String outputFormat = TIFF_OUTPUT;
+	private int[] chunkSize = N5ChunkWriter.defaultChunkSize( 3 );
+	private String codec = N5ChunkWriter.GZIP;
+	private int numResolutionLevels = BdvN5Writer.DEFAULT_NUM_LEVELS;
+	private boolean resume;
+	private final PerformanceMetrics metrics = new PerformanceMetrics();
+	private String metricsPath;
 
 	public LSLFRegistration(
 			String imagePathTarget, // not used?
@@ -104,6 +139,10 @@ public class LSLFRegistration < T extends RealType< T > & NativeType< T > >
 		{
 			interpolatorFactory = new ClampingNLinearInterpolatorFactory();
 		}
+		else if( args[ 6 ].equals( FAST_LINEAR_INTERPOLATION ) )
+		{
+			interpolatorFactory = new PrimitiveNLinearInterpolatorFactory( true );
+		}
 		else
 		{
 			System.err.println( "interpolation method not supported" );
@@ -121,83 +160,426 @@ public class LSLFRegistration < T extends RealType< T > & NativeType< T > >
 				interpolatorFactory,
 				false );
 
+		if ( args.length > 7 && ! args[ 7 ].equals( SUBSAMPLE ) )
+			registration.setBinningMode( Binning.Mode.valueOf( args[ 7 ].toUpperCase() ) );
+
+		if ( args.length > 8 )
+			registration.setOutputFormat( args[ 8 ] );
+
+		if ( args.length > 9 )
+			registration.setMetricsPath( args[ 9 ] );
+
+		if ( args.length > 10 )
+			registration.setResume( args[ 10 ].equals( RESUME ) );
+
 		registration.run();
 	}
 
+	/**
+	 * Loading, resampling and saving run as a pipeline: while one view is resampled,
+	 * the next one is loaded and the previous one is saved. At most one view waits
+	 * between the stages, which bounds the memory.
+	 * Within a view, the TIFF writer computes and writes the output slab by slab.
+	 */
 	public void run() throws SpimDataException
 	{
 
 		loadTransformsFromBdvXml( bdvXmlPath );
 
-		loadImages();
+		// only kept for the viewers; the outputs are written, and dropped, within the pipeline
+		final ArrayList< RandomAccessibleInterval< T > > finalImages = new ArrayList<>();
+		final ArrayList< FinalInterval > finalIntervals = new ArrayList<>();
 
-		final ArrayList< RandomAccessibleInterval > transformed =
-				createTransformedImages( images, transforms, min, max );
+		final ExecutorService loadingService = Executors.newSingleThreadExecutor();
+		final ExecutorService savingService = Executors.newSingleThreadExecutor();
 
-		final ArrayList< RandomAccessibleInterval< T > > subSampled
-				= createSubSampledImages( transformed );
+		try
+		{
+			Future< RandomAccessibleInterval< T > > nextImage = loadingService.submit( () -> loadImage( 0 ) );
+			Future< ? > previousSaving = null;
+
+			for ( int i = 0; i < numImages; i++ )
+			{
+				final RandomAccessibleInterval< T > image = nextImage.get();
+
+				if ( i + 1 < numImages )
+				{
+					final int next = i + 1;
+					nextImage = loadingService.submit( () -> loadImage( next ) );
+				}
+
+				final RandomAccessibleInterval< T > finalImage = createFinalImage( image, i );
+				finalIntervals.add( new FinalInterval( finalImage ) );
+				if ( showImages ) finalImages.add( finalImage );
+
+				if ( previousSaving != null ) previousSaving.get();
+
+				final int view = i;
+				if ( outputFormat.equals( N5_OUTPUT ) )
+					previousSaving = savingService.submit( () -> {
+						saveAsBdvN5Setup( createN5Image( image, finalImage, view ), view );
+						return null;
+					} );
+				else
+					previousSaving = savingService.submit( () -> {
+						saveImage( finalImage, createSlabRenderer( image, finalImage, view ), view );
+						return null;
+					} );
+			}
+
+			if ( previousSaving != null ) previousSaving.get();
+
+			// refers to the setups, which are all written now
+			if ( outputFormat.equals( N5_OUTPUT ) )
+				saveBdvXml( finalIntervals );
+		}
+		catch ( InterruptedException | ExecutionException | IOException e )
+		{
+			throw new RuntimeException( e );
+		}
+		finally
+		{
+			loadingService.shutdownNow();
+			savingService.shutdownNow();
+		}
 
-		final ArrayList< RandomAccessibleInterval< T > > finalImages
-				= forceImagesIntoRAM( subSampled );
+		reportMetrics();
 
 		if ( showImages )
 		{
 			showImagesInBdv( finalImages );
 			showImagesInImageJ( finalImages );
 		}
+	}
+
+	private RandomAccessibleInterval< T > createFinalImage( RandomAccessibleInterval< T > image, int i )
+	{
+		final int numThreads = Runtime.getRuntime().availableProcessors();
+
+		if ( binningMode != null )
+		{
+			Logger.log( "Creating binned output image: " + ( i + 1 ) + " / " + numImages + ", using " + numThreads + " threads."  );
+			try ( PerformanceMetrics.Stage stage = metrics.start( TRANSFORM_STAGE ) )
+			{
+				final RandomAccessibleInterval< T > binned = createBinnedImage( image, transforms.get( i ), numThreads );
+				stage.addVoxels( Intervals.numElements( binned ) );
+				return binned;
+			}
+		}
 
-		saveImages( finalImages );
+		final boolean materialize = materializesFinalImages();
 
+		if ( foldSubSampling )
+		{
+			final AffineTransform3D outputGridTransform = createOutputGridTransform( transforms.get( i ), min, subSampling );
+			final FinalInterval outputGridInterval = createOutputGridInterval( min, max, subSampling );
+
+			// resampled slab by slab while saving, see createSlabRenderer
+			if ( ! materialize )
+				return Views.interval(
+						Transforms.createTransformedRaView( image, outputGridTransform, interpolatorFactory ),
+						outputGridInterval );
+
+			Logger.log( "Creating output image: " + ( i + 1 ) + " / " + numImages + ", using " + numThreads + " threads."  );
+			try ( PerformanceMetrics.Stage stage = metrics.start( TRANSFORM_STAGE ) )
+			{
+				stage.addVoxels( Intervals.numElements( outputGridInterval ) );
+				return Resampler.resample(
+						image,
+						outputGridTransform,
+						outputGridInterval,
+						interpolatorFactory,
+						numThreads );
+			}
+		}
+
+		// lazy; transformed and subsampled where it is materialized or rendered
+		final RandomAccessibleInterval< T > subSampled =
+				Views.subsample( createTransformedImage( image, transforms.get( i ) ), subSampling );
+
+		if ( ! materialize ) return subSampled;
+
+		Logger.log( "Creating output image: " + ( i + 1 ) + " / " + numImages + ", using " + numThreads + " threads."  );
+		try ( PerformanceMetrics.Stage stage = metrics.start( TRANSFORM_STAGE ) )
+		{
+			stage.addVoxels( Intervals.numElements( subSampled ) );
+			return Resampler.materialize( subSampled, numThreads );
+		}
 	}
 
-	private void saveImages( ArrayList< RandomAccessibleInterval< T > > finalImages )
+	/**
+	 * The TIFF writer computes lazy final images slab by slab and the N5 writer chunk by chunk,
+	 * overlapping compute and disk writes; only the viewers need them in RAM.
+	 */
+	private boolean materializesFinalImages()
 	{
-		for ( int i = 0; i < 2; i++ )
+		return showImages;
+	}
+
+	/**
+	 * @return the final image, or, for lazy final images on the output grid, a cached cell image
+	 * with one cell per N5 chunk, whose cells are resampled with culling when the N5 writer reads them
+	 */
+	private RandomAccessibleInterval< T > createN5Image(
+			RandomAccessibleInterval< T > image,
+			RandomAccessibleInterval< T > finalImage,
+			int i )
+	{
+		if ( binningMode != null || materializesFinalImages() || ! foldSubSampling ) return finalImage;
+
+		final AffineTransform3D outputGridTransform = createOutputGridTransform( transforms.get( i ), min, subSampling );
+		final T type = Util.getTypeFromInterval( finalImage );
+
+		long chunkSizeInBytes = type.getBitsPerPixel() / 8;
+		for ( int size : chunkSize )
+			chunkSizeInBytes *= size;
+
+		final ReadOnlyCachedCellImgOptions options = ReadOnlyCachedCellImgOptions.options()
+				.cellDimensions( chunkSize )
+				.cacheType( CacheType.BOUNDED )
+				.maxCacheSize( Math.max( 1, Scalings.defaultCacheSizeInBytes() / chunkSizeInBytes ) );
+
+		// the N5 writer reads the chunks in parallel, each cell is computed by one thread
+		final CellLoader< T > loader = cell -> {
+			try ( PerformanceMetrics.Stage stage = metrics.start( TRANSFORM_STAGE ) )
+			{
+				Resampler.resample( image, outputGridTransform, cell, interpolatorFactory, 1 );
+				stage.addVoxels( Intervals.numElements( cell ) );
+			}
+		};
+
+		// the output grid interval is zero-min, like the cell image
+		return new ReadOnlyCachedCellImgFactory( options ).create(
+				Intervals.dimensionsAsLongArray( finalImage ),
+				type,
+				loader );
+	}
+
+	/**
+	 * @return how the TIFF writer computes the slabs of a lazy final image,
+	 * or null if the final image is in RAM already
+	 */
+	private StreamingTiffWriter.SlabRenderer< T > createSlabRenderer(
+			RandomAccessibleInterval< T > image,
+			RandomAccessibleInterval< T > finalImage,
+			int i )
+	{
+		if ( binningMode != null || materializesFinalImages() ) return null;
+
+		final int numThreads = Runtime.getRuntime().availableProcessors();
+
+		// the slabs are computed within the save stage, which thus includes the transform stage
+		if ( foldSubSampling )
 		{
-			final FileSaver saver = new FileSaver( asImagePlus( finalImages.get( i ), "image_" + i ) );
-			final String outputPath =
-					inputImagePaths.get( i ).replace(
-							".tif",
-							"_registered.tif" );
-			Logger.log( "Saving: " + outputPath );
-			saver.saveAsTiff( outputPath );
+			// resamples the output grid with culling and incremental coordinates, instead of voxel by voxel
+			final AffineTransform3D outputGridTransform = createOutputGridTransform( transforms.get( i ), min, subSampling );
+			return slab -> {
+				try ( PerformanceMetrics.Stage stage = metrics.start( TRANSFORM_STAGE ) )
+				{
+					Resampler.resample( image, outputGridTransform, slab, interpolatorFactory, numThreads );
+					stage.addVoxels( Intervals.numElements( slab ) );
+				}
+			};
 		}
+
+		return slab -> {
+			try ( PerformanceMetrics.Stage stage = metrics.start( TRANSFORM_STAGE ) )
+			{
+				Resampler.materialize( finalImage, slab, numThreads );
+				stage.addVoxels( Intervals.numElements( slab ) );
+			}
+		};
 	}
 
+	private void saveImage(
+			RandomAccessibleInterval< T > finalImage,
+			StreamingTiffWriter.SlabRenderer< T > slabRenderer,
+			int i ) throws IOException
+	{
+		final String outputPath =
+				inputImagePaths.get( i ).replace(
+						".tif",
+						"_registered.tif" );
+		Logger.log( "Saving: " + outputPath );
 
-	private void showImagesInImageJ( ArrayList< RandomAccessibleInterval< T > > finalImages )
+		try ( PerformanceMetrics.Stage stage = metrics.start( SAVE_STAGE ) )
+		{
+			if ( slabRenderer == null )
+				StreamingTiffWriter.write(
+						finalImage,
+						outputPath,
+						compressOutput,
+						Runtime.getRuntime().availableProcessors(),
+						createOutputVoxelSize( subSampling ),
+						OUTPUT_UNIT );
+			else
+				StreamingTiffWriter.write(
+						slabRenderer,
+						finalImage,
+						Util.getTypeFromInterval( finalImage ),
+						outputPath,
+						compressOutput,
+						Runtime.getRuntime().availableProcessors(),
+						createOutputVoxelSize( subSampling ),
+						OUTPUT_UNIT );
+			stage.addVoxels( Intervals.numElements( finalImage ) )
+					.addBytesWritten( new File( outputPath ).length() );
+		}
+	}
+
+	private String bdvXmlPath()
 	{
-		for ( int i = 0; i < 2; i++ )
-			asImagePlus( finalImages.get( i ) , "image_" + i ).show();
+		return inputImagePaths.get( 0 ).replace( ".tif", "_registered.xml" );
 	}
 
-	private ArrayList< RandomAccessibleInterval< T > > forceImagesIntoRAM( ArrayList< RandomAccessibleInterval< T > > subSampled )
+	/**
+	 * Writes all resolution levels of view i as setup i of the BigDataViewer output.
+	 */
+	private void saveAsBdvN5Setup( RandomAccessibleInterval< T > finalImage, int i ) throws IOException
 	{
-		final ArrayList< RandomAccessibleInterval< T > > finalImages = new ArrayList<>();
-		for ( int i = 0; i < 2; i++ )
+		final String n5Path = BdvN5Writer.n5Path( bdvXmlPath() );
+
+		try ( PerformanceMetrics.Stage stage = metrics.start( SAVE_STAGE ) )
 		{
-			final int numThreads = Runtime.getRuntime().availableProcessors();
+			BdvN5Writer.writeSetup(
+					finalImage,
+					n5Path,
+					i,
+					new long[]{ 2, 2, 2 },
+					numResolutionLevels,
+					chunkSize,
+					N5ChunkWriter.createCompression( codec ),
+					resume,
+					Runtime.getRuntime().availableProcessors() );
+
+			stage.addVoxels( Intervals.numElements( finalImage ) )
+					.addBytesWritten( directorySize( Paths.get( n5Path, "setup" + i ) ) );
+		}
+	}
 
-			Logger.log( "Creating output image: " + ( i + 1 ) + " / 2, using " + numThreads + " threads."  );
-			final RandomAccessibleInterval< T > finalImage =
-					CopyUtils.copyVolumeRaiMultiThreaded(
-							subSampled.get( i ),
-							numThreads );
+	private void saveBdvXml( ArrayList< FinalInterval > finalIntervals ) throws IOException
+	{
+		final String xmlPath = bdvXmlPath();
+		Logger.log( "Saving: " + xmlPath );
 
-			finalImages.add( finalImage );
-		}
-		return finalImages;
+		BdvN5Writer.writeXml( finalIntervals, xmlPath, createOutputVoxelSize( subSampling ), OUTPUT_UNIT );
+	}
+
+	/**
+	 * {@link #TIFF_OUTPUT} (default) or {@link #N5_OUTPUT}.
+	 * N5 output is a multi-resolution BigDataViewer dataset with one setup per view.
+	 * It is chunked and can be resumed, see {@link #setResume}.
+	 */
+	public void setOutputFormat( String outputFormat )
+	{
+		if ( ! outputFormat.equals( TIFF_OUTPUT ) && ! outputFormat.equals( N5_OUTPUT ) )
+			throw new IllegalArgumentException( "Output format not supported: " + outputFormat );
+
+		this.outputFormat = outputFormat;
+	}
+
+	/**
+	 * If true, an interrupted N5 export is continued: chunks that exist already are not written again.
+	 * Default is false, where the setups of an existing N5 output are replaced.
+	 */
+	public void setResume( boolean resume )
+	{
+		this.resume = resume;
+	}
+
+	/**
+	 * Number of resolution levels of the N5 output, each downsampled by 2 from the previous one.
+	 */
+	public void setNumResolutionLevels( int numResolutionLevels )
+	{
+		this.numResolutionLevels = numResolutionLevels;
+	}
+
+	public void setChunkSize( int[] chunkSize )
+	{
+		this.chunkSize = chunkSize;
 	}
 
-	private ArrayList< RandomAccessibleInterval< T > > createSubSampledImages( ArrayList< RandomAccessibleInterval > transformed )
+	/**
+	 * Compression of the N5 chunks, see {@link N5ChunkWriter#createCompression}. Default is gzip.
+	 */
+	public void setCodec( String codec )
 	{
-		final ArrayList< RandomAccessibleInterval< T > > subSampled = new ArrayList<>();
-		for ( int i = 0; i < 2; i++ )
+		this.codec = codec;
+	}
+
+	/**
+	 * If true, the output planes are deflate compressed. Default is false.
+	 */
+	public void setCompressOutput( boolean compressOutput )
+	{
+		this.compressOutput = compressOutput;
+	}
+
+
+	private void showImagesInImageJ( ArrayList< RandomAccessibleInterval< T > > finalImages )
+	{
+		for ( int i = 0; i < numImages; i++ )
+			asImagePlus( finalImages.get( i ) , "image_" + i ).show();
+	}
+
+	/**
+	 * If true (default), the crop and the subsampling are folded into the transform of each view,
+	 * such that the output grid is resampled directly, without a full resolution view in between.
+	 */
+	public void setFoldSubSampling( boolean foldSubSampling )
+	{
+		this.foldSubSampling = foldSubSampling;
+	}
+
+	/**
+	 * Maps the source into the output grid, where output voxel o corresponds
+	 * to the voxel min + o * subSampling of the registered (full resolution) image.
+	 */
+	static AffineTransform3D createOutputGridTransform(
+			AffineTransform3D transform,
+			long[] min,
+			long[] subSampling )
+	{
+		final AffineTransform3D cropAndSubSampling = new AffineTransform3D();
+		for ( int d = 0; d < 3; ++d )
 		{
-			subSampled.add(
-				Views.subsample( transformed.get( i ), subSampling ) );
+			cropAndSubSampling.set( 1.0 / subSampling[ d ], d, d );
+			cropAndSubSampling.set( - ( double ) min[ d ] / subSampling[ d ], d, 3 );
 		}
-		return subSampled;
+
+		final AffineTransform3D outputGridTransform = transform.copy();
+		outputGridTransform.preConcatenate( cropAndSubSampling );
+		return outputGridTransform;
+	}
+
+	/**
+	 * One output voxel spans subSampling voxels of the registration grid.
+	 */
+	static double[] createOutputVoxelSize( long[] subSampling )
+	{
+		return Arrays.stream( subSampling ).asDoubleStream().toArray();
+	}
+
+	/**
+	 * @return the zero-min interval of the same size as the subsampled crop
+	 */
+	static FinalInterval createOutputGridInterval( long[] min, long[] max, long[] subSampling )
+	{
+		final long[] dimensions = new long[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+			dimensions[ d ] = ( max[ d ] - min[ d ] ) / subSampling[ d ] + 1;
+
+		return new FinalInterval( dimensions );
+	}
+
+	/**
+	 * Instead of picking every n-th voxel, combines all voxels of each block
+	 * (average, max, min or mode), which avoids aliasing.
+	 */
+	public void setBinningMode( Binning.Mode binningMode )
+	{
+		this.binningMode = binningMode;
 	}
 
 	private void showImagesInBdv( ArrayList< RandomAccessibleInterval< T > > images )
@@ -212,36 +594,69 @@ public class LSLFRegistration < T extends RealType< T > & NativeType< T > >
 				BdvOptions.options().addTo( bdv ) );
 	}
 
-	private static ArrayList< RandomAccessibleInterval >
-	createTransformedImages(
-			ArrayList< RandomAccessibleInterval > images,
-			ArrayList< AffineTransform3D > transforms,
-			long[] min,
-			long[] max )
+	/**
+	 * Bins the transformed crop one output plane at a time: the full resolution slab that a plane
+	 * covers is resampled with culling into a reused buffer and then binned,
+	 * instead of binning the lazy transformed view voxel by voxel.
+	 */
+	private RandomAccessibleInterval< T > createBinnedImage(
+			RandomAccessibleInterval< T > image,
+			AffineTransform3D transform,
+			int numThreads )
 	{
-		final ArrayList< RandomAccessibleInterval > transformed = new ArrayList<>();
+		final FinalInterval crop = new FinalInterval( min, max );
+		final T type = Util.getTypeFromInterval( image );
 
-		for ( int i = 0; i < 2; i++ )
+		final RandomAccessibleInterval< T > binned =
+				ImageCreators.createEmptyImg( Binning.binnedInterval( crop, subSampling ), type );
+
+		final long[] slabMax = max.clone();
+		slabMax[ 2 ] = Math.min( max[ 2 ], min[ 2 ] + subSampling[ 2 ] - 1 );
+		final RandomAccessibleInterval< T > buffer =
+				ImageCreators.createEmptyImg( new FinalInterval( min, slabMax ), type );
+
+		for ( long z = 0; z < binned.dimension( 2 ); ++z )
 		{
-			// The transformedRA lives on a voxel grid
-			// with a voxelSpacing as defined in the bdv.xml file,
-			// combined with the affineTransformations
+			final long zMin = min[ 2 ] + z * subSampling[ 2 ];
+			final long zMax = Math.min( max[ 2 ], zMin + subSampling[ 2 ] - 1 );
 
-			final RandomAccessible transformedRA =
-					Transforms.createTransformedRaView(
-							images.get( i ),
-							transforms.get( i ),
-							interpolatorFactory );
+			final RandomAccessibleInterval< T > slab = Views.interval(
+					Views.translate( buffer, 0, 0, zMin - min[ 2 ] ),
+					new FinalInterval( new long[]{ min[ 0 ], min[ 1 ], zMin }, new long[]{ max[ 0 ], max[ 1 ], zMax } ) );
 
-			// Now we need to crop (in voxel units), which should correspond to isotropic
-			// physical units, because that's the partially point of above affineTransformations
+			Resampler.resample( image, transform, slab, interpolatorFactory, numThreads );
 
-			crop = new FinalInterval( min, max );
+			// the binning target is relative to the slab, whose first plane goes to output plane z
+			final RandomAccessibleInterval< T > plane = Views.interval(
+					Views.translate( binned, 0, 0, - z ),
+					new FinalInterval( binned.dimension( 0 ), binned.dimension( 1 ), 1 ) );
 
-			transformed.add( Views.interval( transformedRA, crop ) );
+			Binning.bin( slab, subSampling, binningMode, plane, numThreads );
 		}
 
-		return transformed;
+		return binned;
+	}
+
+	private RandomAccessibleInterval< T > createTransformedImage(
+			RandomAccessibleInterval< T > image,
+			AffineTransform3D transform )
+	{
+		// The transformedRA lives on a voxel grid
+		// with a voxelSpacing as defined in the bdv.xml file,
+		// combined with the affineTransformations
+
+		final RandomAccessible< T > transformedRA =
+				Transforms.createTransformedRaView(
+						image,
+						transform,
+						interpolatorFactory );
+
+		// Now we need to crop (in voxel units), which should correspond to isotropic
+		// physical units, because that's the partially point of above affineTransformations
+
+		final FinalInterval crop = new FinalInterval( min, max );
+
+		return Views.interval( transformedRA, crop );
 	}
 
 	private void loadTransformsFromBdvXml( String xmlPath ) throws SpimDataException
@@ -256,18 +671,125 @@ public class LSLFRegistration < T extends RealType< T > & NativeType< T > >
 							.getViewRegistration( 0, i ).getModel() );
 	}
 
-	private ArrayList< RandomAccessibleInterval > loadImages()
+	private RandomAccessibleInterval< T > loadImage( int i )
+	{
+		Logger.log( "Open image: " + inputImagePaths.get( i ) );
+
+		try ( PerformanceMetrics.Stage stage = metrics.start( LOAD_STAGE ) )
+		{
+			final RandomAccessibleInterval< T > image = prefetchSourceFootprint( openImage( inputImagePaths.get( i ) ), i );
+			checkFastPath( image, i );
+			stage.addVoxels( Intervals.numElements( image ) )
+					.addBytesRead( numBytes( image ) );
+			return image;
+		}
+	}
+
+	/**
+	 * Wall and CPU time, voxels, bytes and peak heap of the {@link #LOAD_STAGE}, {@link #TRANSFORM_STAGE}
+	 * and {@link #SAVE_STAGE} of {@link #run}, summed over all views. The transform stage covers the
+	 * computation of the output voxels, including the subsampling; where the TIFF writer computes them
+	 * slab by slab, it is part of the save stage.
+	 * As the stages overlap, their sum can exceed the wall time.
+	 * Lazily transformed images are computed while they are saved, which then counts as saving.
+	 */
+	public PerformanceMetrics getPerformanceMetrics()
+	{
+		return metrics;
+	}
+
+	/**
+	 * If set, the JSON summary of the {@link #getPerformanceMetrics()} is written to this path
+	 * at the end of {@link #run}; it is logged in any case.
+	 */
+	public void setMetricsPath( String metricsPath )
+	{
+		this.metricsPath = metricsPath;
+	}
+
+	private void reportMetrics()
+	{
+		final String json = metrics.toJson();
+		Logger.log( "Performance metrics: " + json );
+
+		if ( metricsPath == null ) return;
+
+		try
+		{
+			metrics.writeJson( metricsPath );
+		}
+		catch ( IOException e )
+		{
+			Logger.log( "Could not write performance metrics: " + e.getMessage() );
+		}
+	}
+
+	private long numBytes( RandomAccessibleInterval< T > image )
+	{
+		return Intervals.numElements( image ) * Util.getTypeFromInterval( image ).getBitsPerPixel() / 8;
+	}
+
+	private static long directorySize( Path directory ) throws IOException
 	{
-		images = new ArrayList<>(  );
-		Logger.log( "Open image: " + imagePathTarget );
-		images.add( openImage( imagePathTarget ) );
-		Logger.log( "Open image: " + imagePathSource );
-		images.add( openImage( imagePathSource ) );
-		return images;
+		try ( Stream< Path > paths = Files.walk( directory ) )
+		{
+			return paths.filter( Files::isRegularFile ).mapToLong( path -> path.toFile().length() ).sum();
+		}
+	}
+
+	/**
+	 * Loads only the part of the source image that the crop maps to,
+	 * including the support of the interpolator.
+	 */
+	private RandomAccessibleInterval< T > prefetchSourceFootprint( RandomAccessibleInterval< T > image, int i )
+	{
+		final FinalInterval cropBox = new FinalInterval( min, max );
+		final FinalInterval footprint =
+				Transforms.createSourceFootprint( cropBox, transforms.get( i ), image, 1 );
+
+		if ( footprint == null )
+		{
+			Logger.log( "Crop does not overlap with image: " + inputImagePaths.get( i ) );
+			return image;
+		}
+
+		Logger.log( "Loading source footprint: " + Arrays.toString( Intervals.minAsLongArray( footprint ) )
+				+ " - " + Arrays.toString( Intervals.maxAsLongArray( footprint ) ) );
+		return Resampler.materialize(
+				Views.interval( image, footprint ),
+				Runtime.getRuntime().availableProcessors() );
 	}
 
+	/**
+	 * {@link #FAST_LINEAR_INTERPOLATION} silently falls back to the generic interpolator
+	 * for images it does not support, e.g. of other types, which is much slower; fail instead.
+	 */
+	private void checkFastPath( RandomAccessibleInterval< T > image, int i )
+	{
+		if ( interpolatorFactory instanceof PrimitiveNLinearInterpolatorFactory
+				&& ! PrimitiveNLinearInterpolatorFactory.supports( image ) )
+			throw new IllegalStateException( FAST_LINEAR_INTERPOLATION + " interpolation is not supported for "
+					+ inputImagePaths.get( i ) + " (" + Util.getTypeFromInterval( image ).getClass().getSimpleName()
+					+ ", " + image.getClass().getSimpleName() + "); use " + LINEAR_INTERPOLATION + " instead." );
+	}
+
+	/**
+	 * Uncompressed TIFF stacks are opened lazily, such that only the planes
+	 * that are needed for the output are read; all other files are opened with ImageJ.
+	 */
 	private RandomAccessibleInterval< T > openImage( String imagePath )
 	{
+		try
+		{
+			final RandomAccessibleInterval< T > image =
+					LazyTiffImg.open( imagePath, Scalings.defaultCacheSizeInBytes() / numImages );
+			if ( image != null ) return image;
+		}
+		catch ( IOException e )
+		{
+			Logger.log( "Could not open lazily, reading whole image: " + e.getMessage() );
+		}
+
 		return ImageJFunctions.wrap( IJ.openImage( imagePath ) );
 	}
 
@@ -0,0 +1,357 @@
+package de.embl.cba.transforms.utils;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.DiskCachedCellImgOptions.CacheType;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Opens an uncompressed, single channel TIFF or BigTIFF stack as a cached cell image
+ * with one cell per plane. Planes are only read from disk when they are accessed,
+ * and at most cacheSizeInBytes of planes are kept in memory.
+ */
+public abstract class LazyTiffImg
+{
+	private static final int IMAGE_WIDTH = 256;
+	private static final int IMAGE_LENGTH = 257;
+	private static final int BITS_PER_SAMPLE = 258;
+	private static final int COMPRESSION = 259;
+	private static final int IMAGE_DESCRIPTION = 270;
+	private static final int STRIP_OFFSETS = 273;
+	private static final int SAMPLES_PER_PIXEL = 277;
+	private static final int STRIP_BYTE_COUNTS = 279;
+	private static final int SAMPLE_FORMAT = 339;
+
+	private static final int SAMPLE_FORMAT_UNSIGNED = 1;
+	private static final int SAMPLE_FORMAT_FLOAT = 3;
+
+	/**
+	 * @return the lazily loaded image, or null if the file layout is not supported,
+	 * e.g. because it is compressed, has more than one sample per pixel,
+	 * or is an ImageJ hyperstack with more than one channel or frame
+	 */
+	public static < T extends RealType< T > & NativeType< T > >
+	RandomAccessibleInterval< T > open( String path, long cacheSizeInBytes ) throws IOException
+	{
+		final Layout layout = readLayout( Paths.get( path ) );
+		if ( layout == null ) return null;
+
+		final T type = layout.createType();
+		if ( type == null ) return null;
+
+		final long planeSizeInBytes = layout.width * layout.height * layout.bytesPerSample;
+		final long maxNumPlanes = Math.max( 1, cacheSizeInBytes / planeSizeInBytes );
+
+		final ReadOnlyCachedCellImgOptions options = ReadOnlyCachedCellImgOptions.options()
+				.cellDimensions( ( int ) layout.width, ( int ) layout.height, 1 )
+				.cacheType( CacheType.BOUNDED )
+				.maxCacheSize( maxNumPlanes );
+
+		final CellLoader< T > loader = cell -> readPlane( layout, cell );
+
+		return new ReadOnlyCachedCellImgFactory( options ).create(
+				new long[]{ layout.width, layout.height, layout.planeOffsets.length },
+				type,
+				loader );
+	}
+
+	private static void readPlane( Layout layout, SingleCellArrayImg< ?, ? > cell ) throws IOException
+	{
+		final int z = ( int ) cell.min( 2 );
+		final ByteBuffer buffer = ByteBuffer.allocate( ( int ) ( layout.width * layout.height * layout.bytesPerSample ) );
+		buffer.order( layout.byteOrder );
+
+		try ( FileChannel channel = FileChannel.open( layout.path, StandardOpenOption.READ ) )
+		{
+			long position = layout.planeOffsets[ z ];
+			while ( buffer.hasRemaining() )
+			{
+				final int numBytes = channel.read( buffer, position );
+				if ( numBytes < 0 ) throw new IOException( "Unexpected end of file: " + layout.path );
+				position += numBytes;
+			}
+		}
+		buffer.flip();
+
+		final Object data = ( ( ArrayDataAccess< ? > ) cell.update( null ) ).getCurrentStorageArray();
+		if ( data instanceof byte[] )
+			buffer.get( ( byte[] ) data );
+		else if ( data instanceof short[] )
+			buffer.asShortBuffer().get( ( short[] ) data );
+		else if ( data instanceof float[] )
+			buffer.asFloatBuffer().get( ( float[] ) data );
+	}
+
+	static class Layout
+	{
+		Path path;
+		ByteOrder byteOrder;
+		long width;
+		long height;
+		int bytesPerSample;
+		int sampleFormat;
+		long[] planeOffsets;
+
+		/**
+		 * @return the type, or null for other sample formats, e.g. signed integers,
+		 * which are left to the ImageJ reader
+		 */
+		< T extends RealType< T > & NativeType< T > > T createType()
+		{
+			if ( bytesPerSample == 1 && sampleFormat == SAMPLE_FORMAT_UNSIGNED )
+				return ( T ) new UnsignedByteType();
+			else if ( bytesPerSample == 2 && sampleFormat == SAMPLE_FORMAT_UNSIGNED )
+				return ( T ) new UnsignedShortType();
+			else if ( bytesPerSample == 4 && sampleFormat == SAMPLE_FORMAT_FLOAT )
+				return ( T ) new FloatType();
+			else
+				return null;
+		}
+	}
+
+	/**
+	 * Parses the chain of image file directories.
+	 *
+	 * @return the layout, or null if the planes are not stored uncompressed and contiguously,
+	 * or if they are not a single z-stack
+	 * @throws IOException if the directory offsets form a cycle
+	 */
+	static Layout readLayout( Path path ) throws IOException
+	{
+		try ( FileChannel channel = FileChannel.open( path, StandardOpenOption.READ ) )
+		{
+			final ByteBuffer header = read( channel, 0, 16, ByteOrder.LITTLE_ENDIAN );
+
+			final Layout layout = new Layout();
+			layout.path = path;
+
+			final short byteOrderMark = header.getShort( 0 );
+			if ( byteOrderMark == 0x4949 )
+				layout.byteOrder = ByteOrder.LITTLE_ENDIAN;
+			else if ( byteOrderMark == 0x4D4D )
+				layout.byteOrder = ByteOrder.BIG_ENDIAN;
+			else
+				return null;
+			header.order( layout.byteOrder );
+
+			final int version = header.getShort( 2 );
+			final boolean isBigTiff = version == 43;
+			if ( version != 42 && ! isBigTiff ) return null;
+
+			long ifdOffset = isBigTiff ? header.getLong( 8 ) : header.getInt( 4 ) & 0xFFFFFFFFL;
+
+			final ArrayList< Long > planeOffsets = new ArrayList<>();
+			final HashSet< Long > visitedOffsets = new HashSet<>();
+			String description = null;
+
+			while ( ifdOffset != 0 )
+			{
+				if ( ! visitedOffsets.add( ifdOffset ) )
+					throw new IOException( "TIFF image file directories form a cycle at offset " + ifdOffset + ": " + path );
+
+				final Directory directory = readDirectory( channel, ifdOffset, isBigTiff, layout.byteOrder );
+
+				if ( planeOffsets.isEmpty() )
+				{
+					layout.width = directory.value( IMAGE_WIDTH );
+					layout.height = directory.value( IMAGE_LENGTH );
+					layout.bytesPerSample = ( int ) directory.value( BITS_PER_SAMPLE ) / 8;
+					layout.sampleFormat = directory.has( SAMPLE_FORMAT ) ? ( int ) directory.value( SAMPLE_FORMAT ) : SAMPLE_FORMAT_UNSIGNED;
+					description = directory.description;
+				}
+
+				if ( directory.has( COMPRESSION ) && directory.value( COMPRESSION ) != 1 ) return null;
+				if ( directory.has( SAMPLES_PER_PIXEL ) && directory.value( SAMPLES_PER_PIXEL ) != 1 ) return null;
+				if ( directory.value( IMAGE_WIDTH ) != layout.width || directory.value( IMAGE_LENGTH ) != layout.height ) return null;
+
+				final long planeOffset = directory.contiguousOffset();
+				if ( planeOffset < 0 ) return null;
+				planeOffsets.add( planeOffset );
+
+				ifdOffset = directory.nextOffset;
+			}
+
+			if ( planeOffsets.isEmpty() ) return null;
+
+			// the planes of multi-channel or multi-frame hyperstacks are interleaved and cannot be read as z
+			if ( imageJDescriptionValue( description, "channels" ) > 1
+					|| imageJDescriptionValue( description, "frames" ) > 1 ) return null;
+
+			// ImageJ writes stacks larger than 4 GB with a single directory and contiguous planes
+			final int numImages = imageJDescriptionValue( description, "images" );
+			final long planeSizeInBytes = layout.width * layout.height * layout.bytesPerSample;
+			while ( planeOffsets.size() < numImages )
+				planeOffsets.add( planeOffsets.get( 0 ) + planeOffsets.size() * planeSizeInBytes );
+
+			layout.planeOffsets = planeOffsets.stream().mapToLong( Long::longValue ).toArray();
+			return layout;
+		}
+	}
+
+	/**
+	 * @return the value of an entry such as images=, channels= or frames=, or 0 if there is none
+	 */
+	private static int imageJDescriptionValue( String description, String key )
+	{
+		if ( description == null || ! description.startsWith( "ImageJ" ) ) return 0;
+
+		final Matcher matcher = Pattern.compile( "(?m)^" + key + "=(\\d+)" ).matcher( description );
+		return matcher.find() ? Integer.parseInt( matcher.group( 1 ) ) : 0;
+	}
+
+	private static class Directory
+	{
+		final HashMap< Integer, long[] > values = new HashMap<>();
+		String description;
+		long nextOffset;
+
+		boolean has( int tag )
+		{
+			return values.containsKey( tag );
+		}
+
+		long value( int tag ) throws IOException
+		{
+			if ( ! has( tag ) ) throw new IOException( "Missing TIFF tag: " + tag );
+			return values.get( tag )[ 0 ];
+		}
+
+		/**
+		 * @return the offset of the plane, or -1 if its strips are not contiguous
+		 */
+		long contiguousOffset() throws IOException
+		{
+			final long[] offsets = values.get( STRIP_OFFSETS );
+			final long[] byteCounts = values.get( STRIP_BYTE_COUNTS );
+			if ( offsets == null || byteCounts == null || offsets.length != byteCounts.length )
+				throw new IOException( "Missing TIFF strip information" );
+
+			for ( int i = 1; i < offsets.length; ++i )
+				if ( offsets[ i ] != offsets[ i - 1 ] + byteCounts[ i - 1 ] )
+					return -1;
+
+			return offsets[ 0 ];
+		}
+	}
+
+	private static Directory readDirectory(
+			FileChannel channel,
+			long offset,
+			boolean isBigTiff,
+			ByteOrder byteOrder ) throws IOException
+	{
+		final int countSize = isBigTiff ? 8 : 2;
+		final int entrySize = isBigTiff ? 20 : 12;
+		final int valueSize = isBigTiff ? 8 : 4;
+
+		final ByteBuffer countBuffer = read( channel, offset, countSize, byteOrder );
+		final long numEntries = isBigTiff ? countBuffer.getLong( 0 ) : countBuffer.getShort( 0 ) & 0xFFFF;
+
+		final ByteBuffer entries = read( channel, offset + countSize, ( int ) ( numEntries * entrySize + valueSize ), byteOrder );
+
+		final Directory directory = new Directory();
+		for ( int i = 0; i < numEntries; ++i )
+		{
+			final int entry = i * entrySize;
+			final int tag = entries.getShort( entry ) & 0xFFFF;
+			final int type = entries.getShort( entry + 2 ) & 0xFFFF;
+			final long count = isBigTiff ? entries.getLong( entry + 4 ) : entries.getInt( entry + 4 ) & 0xFFFFFFFFL;
+			final int typeSize = typeSize( type );
+			if ( typeSize == 0 ) continue;
+
+			final int valueOffset = entry + ( isBigTiff ? 12 : 8 );
+			final ByteBuffer valueBuffer;
+			int position;
+			if ( count * typeSize <= valueSize )
+			{
+				valueBuffer = entries;
+				position = valueOffset;
+			}
+			else
+			{
+				final long dataOffset = isBigTiff ? entries.getLong( valueOffset ) : entries.getInt( valueOffset ) & 0xFFFFFFFFL;
+				valueBuffer = read( channel, dataOffset, ( int ) ( count * typeSize ), byteOrder );
+				position = 0;
+			}
+
+			if ( tag == IMAGE_DESCRIPTION )
+			{
+				final byte[] bytes = new byte[ ( int ) count ];
+				for ( int j = 0; j < count; ++j )
+					bytes[ j ] = valueBuffer.get( position + j );
+				directory.description = new String( bytes, StandardCharsets.US_ASCII ).trim();
+				continue;
+			}
+
+			final long[] values = new long[ ( int ) count ];
+			for ( int j = 0; j < count; ++j, position += typeSize )
+			{
+				switch ( typeSize )
+				{
+					case 1: values[ j ] = valueBuffer.get( position ) & 0xFF; break;
+					case 2: values[ j ] = valueBuffer.getShort( position ) & 0xFFFF; break;
+					case 4: values[ j ] = valueBuffer.getInt( position ) & 0xFFFFFFFFL; break;
+					default: values[ j ] = valueBuffer.getLong( position );
+				}
+			}
+			directory.values.put( tag, values );
+		}
+
+		final int next = ( int ) ( numEntries * entrySize );
+		directory.nextOffset = isBigTiff ? entries.getLong( next ) : entries.getInt( next ) & 0xFFFFFFFFL;
+
+		return directory;
+	}
+
+	/**
+	 * @return the size of integer TIFF field types, 0 for all other types
+	 */
+	private static int typeSize( int type )
+	{
+		switch ( type )
+		{
+			case 1: // BYTE
+			case 2: // ASCII
+				return 1;
+			case 3: // SHORT
+				return 2;
+			case 4: // LONG
+				return 4;
+			case 16: // LONG8
+				return 8;
+			default:
+				return 0;
+		}
+	}
+
+	private static ByteBuffer read( FileChannel channel, long offset, int numBytes, ByteOrder byteOrder ) throws IOException
+	{
+		final ByteBuffer buffer = ByteBuffer.allocate( numBytes );
+		buffer.order( byteOrder );
+		while ( buffer.hasRemaining() )
+			if ( channel.read( buffer, offset + buffer.position() ) < 0 ) break;
+		return buffer;
+	}
+}
@@ -0,0 +1,229 @@
+package de.embl.cba.transforms.utils;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineGet;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Affine, n-linear resampling of all channels of a 3D multi-channel image in one go.
+ *
+ * The source coordinate and the eight interpolation weights are computed once per output voxel
+ * and applied to all channels, instead of once per channel and voxel, as it happens with
+ * one transformed view per channel. The channel axis can be any dimension,
+ * e.g. 3 for planar and 0 for channel-interleaved images.
+ *
+ * The result equals n-linear interpolation of each channel of the zero-extended images,
+ * as {@link net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory} or, if clamping,
+ * {@link net.imglib2.interpolation.randomaccess.ClampingNLinearInterpolatorFactory} compute it,
+ * except that the weighted sum is accumulated in double precision instead of in the pixel type.
+ */
+public abstract class MultiChannelResampler
+{
+	/**
+	 * Corners of the interpolation cube in an order in which consecutive corners differ along one axis only.
+	 */
+	private static final int[][] CORNERS = {
+			{ 0, 0, 0 }, { 1, 0, 0 }, { 1, 1, 0 }, { 0, 1, 0 },
+			{ 0, 1, 1 }, { 1, 1, 1 }, { 1, 0, 1 }, { 0, 0, 1 } };
+
+	/**
+	 * @param sourceToTarget
+	 * 			3D transform of the spatial dimensions
+	 * @param outputInterval
+	 * 			3D interval of the spatial dimensions of the output
+	 * @param clamping
+	 * 			whether interpolated values are clamped to the range of the type
+	 * @return the transformed image, with the same channel axis as the input
+	 */
+	public static < T extends RealType< T > & NativeType< T > >
+	RandomAccessibleInterval< T > resample(
+			RandomAccessibleInterval< T > images,
+			int channelAxis,
+			AffineGet sourceToTarget,
+			Interval outputInterval,
+			boolean clamping,
+			int numThreads )
+	{
+		final int[] spatialAxes = spatialAxes( channelAxis );
+
+		final long[] min = new long[ 4 ];
+		final long[] max = new long[ 4 ];
+		min[ channelAxis ] = images.min( channelAxis );
+		max[ channelAxis ] = images.max( channelAxis );
+		for ( int d = 0; d < 3; ++d )
+		{
+			min[ spatialAxes[ d ] ] = outputInterval.min( d );
+			max[ spatialAxes[ d ] ] = outputInterval.max( d );
+		}
+
+		final RandomAccessibleInterval< T > output =
+				ImageCreators.createEmptyImg( new FinalInterval( min, max ), images.randomAccess().get() );
+
+		final AffineRaster raster = new AffineRaster( sourceToTarget );
+
+		Resampler.forEachBlock(
+				outputInterval,
+				Resampler.defaultBlockSize( 3 ),
+				numThreads,
+				() -> new MultiChannelWorker<>( images, output, channelAxis, raster.copy(), clamping ) );
+
+		return output;
+	}
+
+	private static int[] spatialAxes( int channelAxis )
+	{
+		final int[] spatialAxes = new int[ 3 ];
+		for ( int d = 0, i = 0; d < 4; ++d )
+			if ( d != channelAxis )
+				spatialAxes[ i++ ] = d;
+
+		return spatialAxes;
+	}
+
+	private static class MultiChannelWorker< T extends RealType< T > > implements Resampler.BlockWorker
+	{
+		private final RandomAccess< T > in;
+		private final RandomAccess< T > out;
+		private final int channelAxis;
+		private final int[] spatialAxes;
+		private final AffineRaster raster;
+		private final long channelMin;
+		private final long numChannels;
+		private final double minValue;
+		private final double maxValue;
+
+		private final long[] base = new long[ 3 ];
+		private final double[] fraction = new double[ 3 ];
+		private final double[] weights = new double[ CORNERS.length ];
+
+		// beyond one voxel outside of the images the interpolated values are zero, as in the empty output
+		private final double[] sourceMin = new double[ 3 ];
+		private final double[] sourceMax = new double[ 3 ];
+		private final double[] blockMin = new double[ 3 ];
+		private final double[] blockMax = new double[ 3 ];
+		private final long[] span = new long[ 2 ];
+
+		MultiChannelWorker(
+				RandomAccessibleInterval< T > images,
+				RandomAccessibleInterval< T > output,
+				int channelAxis,
+				AffineRaster raster,
+				boolean clamping )
+		{
+			this.in = Views.extendZero( images ).randomAccess();
+			this.out = output.randomAccess();
+			this.channelAxis = channelAxis;
+			this.spatialAxes = spatialAxes( channelAxis );
+			this.raster = raster;
+			for ( int d = 0; d < 3; ++d )
+			{
+				sourceMin[ d ] = images.min( spatialAxes[ d ] ) - 1;
+				sourceMax[ d ] = images.max( spatialAxes[ d ] ) + 1;
+			}
+			this.channelMin = output.min( channelAxis );
+			this.numChannels = output.dimension( channelAxis );
+
+			final T type = Util.getTypeFromInterval( output );
+			this.minValue = clamping ? type.getMinValue() : Double.NEGATIVE_INFINITY;
+			this.maxValue = clamping ? type.getMaxValue() : Double.POSITIVE_INFINITY;
+		}
+
+		@Override
+		public void process( Interval block )
+		{
+			final long rowLength = block.dimension( 0 );
+			final double[] source = raster.source();
+			raster.setBlock( block );
+			raster.sourceBounds( blockMin, blockMax );
+
+			for ( int d = 0; d < 3; ++d )
+				if ( blockMax[ d ] < sourceMin[ d ] || blockMin[ d ] > sourceMax[ d ] )
+					return;
+
+			do
+			{
+				if ( ! raster.rowSpan( sourceMin, sourceMax, span ) ) continue;
+
+				final long[] rowPosition = raster.rowPosition();
+				for ( int d = 0; d < 3; ++d )
+					out.setPosition( rowPosition[ d ], spatialAxes[ d ] );
+				out.move( span[ 0 ], spatialAxes[ 0 ] );
+				raster.fwd( span[ 0 ] );
+
+				for ( long x = span[ 0 ]; x <= span[ 1 ]; ++x )
+				{
+					computeWeights( source );
+
+					for ( int d = 0; d < 3; ++d )
+						in.setPosition( base[ d ], spatialAxes[ d ] );
+					in.setPosition( channelMin, channelAxis );
+					out.setPosition( channelMin, channelAxis );
+
+					for ( long c = 0; c < numChannels; ++c )
+					{
+						out.get().setReal( Math.max( minValue, Math.min( maxValue, interpolate() ) ) );
+						in.fwd( channelAxis );
+						out.fwd( channelAxis );
+					}
+
+					out.fwd( spatialAxes[ 0 ] );
+					raster.fwd();
+				}
+			}
+			while ( raster.nextRow() );
+		}
+
+		private void computeWeights( double[] source )
+		{
+			for ( int d = 0; d < 3; ++d )
+			{
+				final double floor = Math.floor( source[ d ] );
+				base[ d ] = ( long ) floor;
+				fraction[ d ] = source[ d ] - floor;
+			}
+
+			for ( int k = 0; k < CORNERS.length; ++k )
+			{
+				double weight = 1;
+				for ( int d = 0; d < 3; ++d )
+					weight *= CORNERS[ k ][ d ] == 1 ? fraction[ d ] : 1 - fraction[ d ];
+				weights[ k ] = weight;
+			}
+		}
+
+		/**
+		 * Visits the corners of the cube at the current position, and returns to it.
+		 */
+		private double interpolate()
+		{
+			double value = weights[ 0 ] * in.get().getRealDouble();
+
+			for ( int k = 1; k < CORNERS.length; ++k )
+			{
+				move( CORNERS[ k - 1 ], CORNERS[ k ] );
+				value += weights[ k ] * in.get().getRealDouble();
+			}
+
+			move( CORNERS[ CORNERS.length - 1 ], CORNERS[ 0 ] );
+
+			return value;
+		}
+
+		private void move( int[] from, int[] to )
+		{
+			for ( int d = 0; d < 3; ++d )
+			{
+				if ( to[ d ] > from[ d ] )
+					in.fwd( spatialAxes[ d ] );
+				else if ( to[ d ] < from[ d ] )
+					in.bck( spatialAxes[ d ] );
+			}
+		}
+	}
+}
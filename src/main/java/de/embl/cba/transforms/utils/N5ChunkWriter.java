@@ -0,0 +1,356 @@
+package de.embl.cba.transforms.utils;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.DiskCachedCellImgOptions.CacheType;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import org.janelia.saalfeldlab.n5.Bzip2Compression;
+import org.janelia.saalfeldlab.n5.ByteArrayDataBlock;
+import org.janelia.saalfeldlab.n5.Compression;
+import org.janelia.saalfeldlab.n5.DataBlock;
+import org.janelia.saalfeldlab.n5.DataType;
+import org.janelia.saalfeldlab.n5.DatasetAttributes;
+import org.janelia.saalfeldlab.n5.DefaultBlockWriter;
+import org.janelia.saalfeldlab.n5.FloatArrayDataBlock;
+import org.janelia.saalfeldlab.n5.GzipCompression;
+import org.janelia.saalfeldlab.n5.Lz4Compression;
+import org.janelia.saalfeldlab.n5.N5FSReader;
+import org.janelia.saalfeldlab.n5.N5FSWriter;
+import org.janelia.saalfeldlab.n5.N5Reader;
+import org.janelia.saalfeldlab.n5.N5Writer;
+import org.janelia.saalfeldlab.n5.RawCompression;
+import org.janelia.saalfeldlab.n5.ShortArrayDataBlock;
+import org.janelia.saalfeldlab.n5.XzCompression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Writes a (lazy) image as an N5 dataset on the local file system.
+ *
+ * The image is split into chunks, which are computed from the view, compressed and written in parallel,
+ * such that the image never needs to fit into memory. Chunks that already exist on disk can be skipped,
+ * which allows to resume an interrupted export. Each chunk is written to a temporary file that is then
+ * atomically renamed, such that an interruption never leaves a truncated chunk behind.
+ * Written datasets can be read back lazily with {@link #open}.
+ */
+public abstract class N5ChunkWriter
+{
+	public static final int DEFAULT_CHUNK_SIZE = 64;
+
+	public static final String RAW = "raw";
+	public static final String GZIP = "gzip";
+	public static final String LZ4 = "lz4";
+	public static final String XZ = "xz";
+	public static final String BZIP2 = "bzip2";
+
+	public static int[] defaultChunkSize( int numDimensions )
+	{
+		final int[] chunkSize = new int[ numDimensions ];
+		Arrays.fill( chunkSize, DEFAULT_CHUNK_SIZE );
+		return chunkSize;
+	}
+
+	public static Compression createCompression( String codec )
+	{
+		switch ( codec.toLowerCase() )
+		{
+			case RAW: return new RawCompression();
+			case GZIP: return new GzipCompression();
+			case LZ4: return new Lz4Compression();
+			case XZ: return new XzCompression();
+			case BZIP2: return new Bzip2Compression();
+			default: throw new IllegalArgumentException( "Codec not supported: " + codec );
+		}
+	}
+
+	/**
+	 * The image is written with its min at the origin of the dataset.
+	 * Only {@link UnsignedByteType}, {@link UnsignedShortType} and {@link FloatType} images are written.
+	 *
+	 * @param skipExistingChunks
+	 * 			if true, chunks that exist on disk are not computed again, e.g. to resume an interrupted export
+	 * 			of the same image; an existing dataset whose dimensions, chunk size, data type or compression
+	 * 			differ from the requested ones is recreated. If false, an existing dataset is always recreated.
+	 */
+	public static < T extends RealType< T > >
+	void write(
+			RandomAccessibleInterval< T > image,
+			String basePath,
+			String dataset,
+			int[] chunkSize,
+			Compression compression,
+			boolean skipExistingChunks,
+			int numThreads ) throws IOException
+	{
+		final N5Writer n5 = new N5FSWriter( basePath );
+		final DataType dataType = dataType( Util.getTypeFromInterval( image ) );
+
+		final long[] dimensions = Intervals.dimensionsAsLongArray( image );
+
+		if ( n5.datasetExists( dataset ) )
+		{
+			if ( ! skipExistingChunks )
+				n5.remove( dataset );
+			else if ( ! matches( n5.getDatasetAttributes( dataset ), dimensions, chunkSize, dataType, compression ) )
+			{
+				Logger.log( "Existing dataset " + basePath + "/" + dataset + " does not match the requested layout, recreating it." );
+				n5.remove( dataset );
+			}
+		}
+
+		if ( ! n5.datasetExists( dataset ) )
+			n5.createDataset( dataset, dimensions, chunkSize, dataType, compression );
+
+		final DatasetAttributes attributes = n5.getDatasetAttributes( dataset );
+		final Path datasetPath = Paths.get( basePath, dataset );
+
+		try
+		{
+			Resampler.forEachBlock(
+					new FinalInterval( Intervals.dimensionsAsLongArray( image ) ),
+					chunkSize,
+					numThreads,
+					() -> new ChunkWorker<>( image, attributes, datasetPath, skipExistingChunks ) );
+		}
+		catch ( UncheckedIOException e )
+		{
+			throw e.getCause();
+		}
+	}
+
+	private static boolean matches(
+			DatasetAttributes attributes,
+			long[] dimensions,
+			int[] chunkSize,
+			DataType dataType,
+			Compression compression )
+	{
+		return attributes != null
+				&& Arrays.equals( attributes.getDimensions(), dimensions )
+				&& Arrays.equals( attributes.getBlockSize(), chunkSize )
+				&& attributes.getDataType() == dataType
+				&& attributes.getCompression().getClass() == compression.getClass();
+	}
+
+	/**
+	 * Writes the block next to its final path and renames it, such that readers
+	 * and resumed exports see either the complete chunk or none.
+	 */
+	static void writeChunkAtomically( Path chunkPath, DatasetAttributes attributes, DataBlock< ? > block ) throws IOException
+	{
+		Files.createDirectories( chunkPath.getParent() );
+		final Path temporaryPath = Files.createTempFile( chunkPath.getParent(), chunkPath.getFileName() + ".", ".tmp" );
+
+		try
+		{
+			try ( OutputStream out = Files.newOutputStream( temporaryPath ) )
+			{
+				DefaultBlockWriter.writeBlock( out, attributes, block );
+			}
+
+			Files.move( temporaryPath, chunkPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+		}
+		finally
+		{
+			Files.deleteIfExists( temporaryPath );
+		}
+	}
+
+	/**
+	 * Reads a dataset written by {@link #write} lazily, with one cell per chunk
+	 * and at most cacheSizeInBytes of chunks in memory. Missing chunks are zero.
+	 */
+	public static < T extends RealType< T > & NativeType< T > >
+	RandomAccessibleInterval< T > open( String basePath, String dataset, long cacheSizeInBytes ) throws IOException
+	{
+		final N5Reader n5 = new N5FSReader( basePath );
+		final DatasetAttributes attributes = n5.getDatasetAttributes( dataset );
+		final T type = type( attributes.getDataType() );
+
+		final int[] chunkSize = attributes.getBlockSize();
+		long chunkSizeInBytes = type.getBitsPerPixel() / 8;
+		for ( int size : chunkSize )
+			chunkSizeInBytes *= size;
+
+		final ReadOnlyCachedCellImgOptions options = ReadOnlyCachedCellImgOptions.options()
+				.cellDimensions( chunkSize )
+				.cacheType( CacheType.BOUNDED )
+				.maxCacheSize( Math.max( 1, cacheSizeInBytes / chunkSizeInBytes ) );
+
+		final CellLoader< T > loader = cell -> {
+			final long[] gridPosition = new long[ cell.numDimensions() ];
+			for ( int d = 0; d < gridPosition.length; ++d )
+				gridPosition[ d ] = cell.min( d ) / chunkSize[ d ];
+
+			final DataBlock< ? > block = n5.readBlock( dataset, attributes, gridPosition );
+			if ( block == null ) return;
+
+			final Object data = ( ( ArrayDataAccess< ? > ) cell.update( null ) ).getCurrentStorageArray();
+			System.arraycopy( block.getData(), 0, data, 0, block.getNumElements() );
+		};
+
+		return new ReadOnlyCachedCellImgFactory( options ).create(
+				attributes.getDimensions(),
+				type,
+				loader );
+	}
+
+	static < T extends RealType< T > & NativeType< T > > T type( DataType dataType )
+	{
+		switch ( dataType )
+		{
+			case UINT8: return ( T ) new UnsignedByteType();
+			case UINT16: return ( T ) new UnsignedShortType();
+			case FLOAT32: return ( T ) new FloatType();
+			default: throw new IllegalArgumentException( "Data type not supported: " + dataType );
+		}
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the type is not 8 or 16 bit unsigned integer or 32 bit float
+	 */
+	static DataType dataType( RealType< ? > type )
+	{
+		if ( type instanceof UnsignedByteType ) return DataType.UINT8;
+		if ( type instanceof UnsignedShortType ) return DataType.UINT16;
+		if ( type instanceof FloatType ) return DataType.FLOAT32;
+
+		throw new IllegalArgumentException( "Only UnsignedByteType, UnsignedShortType and FloatType images can be written, not "
+				+ type.getClass().getSimpleName() + "; convert the image first, e.g. with Converters.convert." );
+	}
+
+	/**
+	 * Path of a chunk in the file system layout of N5: one directory per dimension of the grid position.
+	 */
+	static Path chunkPath( Path datasetPath, long[] gridPosition )
+	{
+		Path path = datasetPath;
+		for ( long g : gridPosition )
+			path = path.resolve( Long.toString( g ) );
+		return path;
+	}
+
+	private static class ChunkWorker< T extends RealType< T > > implements Resampler.BlockWorker
+	{
+		private final RandomAccessibleInterval< T > image;
+		private final DatasetAttributes attributes;
+		private final Path datasetPath;
+		private final boolean skipExistingChunks;
+		private final RandomAccess< T > access;
+		private final int[] chunkSize;
+		private final long[] gridPosition;
+		private final long[] position;
+
+		ChunkWorker(
+				RandomAccessibleInterval< T > image,
+				DatasetAttributes attributes,
+				Path datasetPath,
+				boolean skipExistingChunks )
+		{
+			this.image = image;
+			this.attributes = attributes;
+			this.datasetPath = datasetPath;
+			this.skipExistingChunks = skipExistingChunks;
+			this.access = image.randomAccess();
+			this.chunkSize = attributes.getBlockSize();
+			this.gridPosition = new long[ image.numDimensions() ];
+			this.position = new long[ image.numDimensions() ];
+		}
+
+		@Override
+		public void process( Interval chunk )
+		{
+			final int n = chunk.numDimensions();
+			final int[] size = new int[ n ];
+			int numElements = 1;
+			for ( int d = 0; d < n; ++d )
+			{
+				size[ d ] = ( int ) chunk.dimension( d );
+				gridPosition[ d ] = chunk.min( d ) / chunkSize[ d ];
+				numElements *= size[ d ];
+			}
+
+			final Path chunkPath = chunkPath( datasetPath, gridPosition );
+			if ( skipExistingChunks && Files.exists( chunkPath ) )
+				return;
+
+			final DataBlock< ? > block;
+			switch ( attributes.getDataType() )
+			{
+				case UINT8:
+					final byte[] bytes = new byte[ numElements ];
+					copy( chunk, ( i, t ) -> bytes[ i ] = ( byte ) ( ( UnsignedByteType ) t ).get() );
+					block = new ByteArrayDataBlock( size, gridPosition.clone(), bytes );
+					break;
+				case UINT16:
+					final short[] shorts = new short[ numElements ];
+					copy( chunk, ( i, t ) -> shorts[ i ] = ( short ) ( ( UnsignedShortType ) t ).get() );
+					block = new ShortArrayDataBlock( size, gridPosition.clone(), shorts );
+					break;
+				case FLOAT32:
+					final float[] floats = new float[ numElements ];
+					copy( chunk, ( i, t ) -> floats[ i ] = ( ( FloatType ) t ).get() );
+					block = new FloatArrayDataBlock( size, gridPosition.clone(), floats );
+					break;
+				default:
+					throw new IllegalArgumentException( "Data type not supported: " + attributes.getDataType() );
+			}
+
+			try
+			{
+				writeChunkAtomically( chunkPath, attributes, block );
+			}
+			catch ( IOException e )
+			{
+				throw new UncheckedIOException( e );
+			}
+		}
+
+		private interface Setter< T >
+		{
+			void set( int index, T t );
+		}
+
+		/**
+		 * Visits the voxels of the chunk in flat (x fastest) order.
+		 */
+		private void copy( Interval chunk, Setter< T > setter )
+		{
+			final long rowLength = chunk.dimension( 0 );
+			int index = 0;
+
+			chunk.min( position );
+			do
+			{
+				for ( int d = 0; d < position.length; ++d )
+					access.setPosition( image.min( d ) + position[ d ], d );
+
+				for ( long x = 0; x < rowLength; ++x, ++index )
+				{
+					setter.set( index, access.get() );
+					access.fwd( 0 );
+				}
+			}
+			while ( Resampler.nextRow( position, chunk ) );
+		}
+	}
+}
@@ -0,0 +1,207 @@
+package de.embl.cba.transforms.utils;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records wall time, CPU time, voxels, bytes read and written and the peak heap of the stages of a run.
+ *
+ * Every stage is also emitted as a JDK Flight Recorder event ({@link StageEvent}), such that a recording
+ * (e.g. -XX:StartFlightRecording) shows the stages next to GC, I/O and thread activity.
+ * Where the JVM has no Flight Recorder, only the summary is recorded.
+ *
+ * Usage:
+ * <pre>
+ * try ( PerformanceMetrics.Stage stage = metrics.start( "load" ) )
+ * {
+ *     ...
+ *     stage.addVoxels( numVoxels ).addBytesRead( numBytes );
+ * }
+ * </pre>
+ */
+public class PerformanceMetrics
+{
+	private static final boolean FLIGHT_RECORDER_AVAILABLE = isFlightRecorderAvailable();
+
+	private final Map< String, Totals > totals = new LinkedHashMap<>();
+	private final long startInNanos = System.nanoTime();
+
+	public Stage start( String name )
+	{
+		return new Stage( name );
+	}
+
+	/**
+	 * One execution of a stage; closing it adds its measurements to the totals of the stage.
+	 */
+	public class Stage implements AutoCloseable
+	{
+		private final String name;
+		private final long startInNanos;
+		private final long startCpuInNanos;
+		private final Object event;
+		private long voxels;
+		private long bytesRead;
+		private long bytesWritten;
+
+		private Stage( String name )
+		{
+			this.name = name;
+			this.event = FLIGHT_RECORDER_AVAILABLE ? StageEvents.begin( name ) : null;
+			this.startCpuInNanos = processCpuTimeInNanos();
+			this.startInNanos = System.nanoTime();
+		}
+
+		public Stage addVoxels( long voxels )
+		{
+			this.voxels += voxels;
+			return this;
+		}
+
+		public Stage addBytesRead( long bytes )
+		{
+			this.bytesRead += bytes;
+			return this;
+		}
+
+		public Stage addBytesWritten( long bytes )
+		{
+			this.bytesWritten += bytes;
+			return this;
+		}
+
+		@Override
+		public void close()
+		{
+			final long wallInNanos = System.nanoTime() - startInNanos;
+			final long cpuInNanos = startCpuInNanos < 0 ? -1 : processCpuTimeInNanos() - startCpuInNanos;
+
+			if ( event != null )
+				StageEvents.commit( event, voxels, bytesRead, bytesWritten, cpuInNanos );
+
+			synchronized ( totals )
+			{
+				totals.computeIfAbsent( name, k -> new Totals() ).add( wallInNanos, cpuInNanos, voxels, bytesRead, bytesWritten );
+			}
+		}
+	}
+
+	private static class Totals
+	{
+		int count;
+		long wallInNanos;
+		long cpuInNanos;
+		long voxels;
+		long bytesRead;
+		long bytesWritten;
+		long peakHeapBytes;
+
+		void add( long wallInNanos, long cpuInNanos, long voxels, long bytesRead, long bytesWritten )
+		{
+			count++;
+			this.wallInNanos += wallInNanos;
+			this.cpuInNanos = cpuInNanos < 0 || this.cpuInNanos < 0 ? -1 : this.cpuInNanos + cpuInNanos;
+			this.voxels += voxels;
+			this.bytesRead += bytesRead;
+			this.bytesWritten += bytesWritten;
+			this.peakHeapBytes = Math.max( peakHeapBytes, peakHeapBytes() );
+		}
+	}
+
+	/**
+	 * The CPU time is the one of the whole process, such that stages that run at the same time
+	 * (e.g. loading the next view while the current one is transformed) both contain it.
+	 * Throughputs are per second of wall time.
+	 *
+	 * @return the summary as one JSON object
+	 */
+	public String toJson()
+	{
+		final StringBuilder json = new StringBuilder();
+		json.append( "{\"wallSeconds\": " ).append( seconds( System.nanoTime() - startInNanos ) );
+		json.append( ", \"peakHeapBytes\": " ).append( peakHeapBytes() );
+		json.append( ", \"stages\": {" );
+
+		synchronized ( totals )
+		{
+			boolean first = true;
+			for ( Map.Entry< String, Totals > entry : totals.entrySet() )
+			{
+				final Totals stage = entry.getValue();
+				final double wallSeconds = seconds( stage.wallInNanos );
+
+				json.append( first ? "" : ", " ).append( "\"" ).append( entry.getKey() ).append( "\": {" );
+				json.append( "\"count\": " ).append( stage.count );
+				json.append( ", \"wallSeconds\": " ).append( wallSeconds );
+				json.append( ", \"cpuSeconds\": " ).append( stage.cpuInNanos < 0 ? -1 : seconds( stage.cpuInNanos ) );
+				json.append( ", \"voxels\": " ).append( stage.voxels );
+				json.append( ", \"bytesRead\": " ).append( stage.bytesRead );
+				json.append( ", \"bytesWritten\": " ).append( stage.bytesWritten );
+				json.append( ", \"voxelsPerSecond\": " ).append( wallSeconds > 0 ? stage.voxels / wallSeconds : 0 );
+				json.append( ", \"bytesPerSecond\": " ).append( wallSeconds > 0 ? ( stage.bytesRead + stage.bytesWritten ) / wallSeconds : 0 );
+				json.append( ", \"peakHeapBytes\": " ).append( stage.peakHeapBytes );
+				json.append( "}" );
+				first = false;
+			}
+		}
+
+		json.append( "}}" );
+		return json.toString();
+	}
+
+	public void writeJson( String path ) throws IOException
+	{
+		try ( PrintWriter writer = new PrintWriter( path, "UTF-8" ) )
+		{
+			writer.println( toJson() );
+		}
+	}
+
+	/**
+	 * @return the peak heap usage since the start of the JVM, summed over the heap memory pools
+	 */
+	public static long peakHeapBytes()
+	{
+		long peak = 0;
+		for ( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() )
+			if ( pool.getType() == MemoryType.HEAP )
+				peak += pool.getPeakUsage().getUsed();
+		return peak;
+	}
+
+	/**
+	 * @return the CPU time of the process, or -1 where the JVM does not provide it
+	 */
+	private static long processCpuTimeInNanos()
+	{
+		final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if ( os instanceof com.sun.management.OperatingSystemMXBean )
+			return ( ( com.sun.management.OperatingSystemMXBean ) os ).getProcessCpuTime();
+		return -1;
+	}
+
+	private static double seconds( long nanos )
+	{
+		return nanos * 1e-9;
+	}
+
+	private static boolean isFlightRecorderAvailable()
+	{
+		try
+		{
+			Class.forName( "jdk.jfr.Event" );
+			StageEvents.begin( "" );
+			return true;
+		}
+		catch ( ClassNotFoundException | LinkageError e )
+		{
+			return false;
+		}
+	}
+}
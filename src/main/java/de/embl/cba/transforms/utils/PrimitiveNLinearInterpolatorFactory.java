@@ -0,0 +1,122 @@
+package de.embl.cba.transforms.utils;
+
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.interpolation.InterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.ClampingNLinearInterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.outofbounds.OutOfBoundsBorderFactory;
+import net.imglib2.outofbounds.OutOfBoundsConstantValueFactory;
+import net.imglib2.outofbounds.OutOfBoundsFactory;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.ExtendedRandomAccessibleInterval;
+import net.imglib2.view.Views;
+
+/**
+ * Drop-in replacement for {@link NLinearInterpolatorFactory} and {@link ClampingNLinearInterpolatorFactory}.
+ *
+ * For 3D {@link UnsignedByteType}, {@link UnsignedShortType} and {@link FloatType} images,
+ * which are backed by an ArrayImg, PlanarImg or CellImg (possibly through an interval
+ * or integer translation of it, see {@link PrimitiveVolume#wrap}) and extended with a constant value
+ * or the border (e.g. {@code Views.extendZero}, {@code Views.extendBorder}), it creates
+ * a {@link PrimitiveTrilinearInterpolator}. Everything else is delegated to the generic factories.
+ *
+ * Trilinear interpolation of integer values never leaves the range of the type,
+ * thus clamping is only relevant for the generic fallback.
+ */
+public class PrimitiveNLinearInterpolatorFactory< T extends RealType< T > >
+		implements InterpolatorFactory< T, RandomAccessible< T > >
+{
+	private final InterpolatorFactory< T, RandomAccessible< T > > fallback;
+
+	public PrimitiveNLinearInterpolatorFactory()
+	{
+		this( false );
+	}
+
+	public PrimitiveNLinearInterpolatorFactory( boolean clamping )
+	{
+		if ( clamping )
+			fallback = new ClampingNLinearInterpolatorFactory<>();
+		else
+			fallback = new NLinearInterpolatorFactory<>();
+	}
+
+	@Override
+	public RealRandomAccess< T > create( RandomAccessible< T > randomAccessible )
+	{
+		final RealRandomAccess< T > interpolator = createPrimitiveInterpolator( randomAccessible );
+
+		if ( interpolator != null )
+			return interpolator;
+		else
+			return fallback.create( randomAccessible );
+	}
+
+	@Override
+	public RealRandomAccess< T > create( RandomAccessible< T > randomAccessible, RealInterval interval )
+	{
+		return create( randomAccessible );
+	}
+
+	/**
+	 * @return whether {@link #create} returns a {@link PrimitiveTrilinearInterpolator}
+	 * for the image extended with a constant value or the border, instead of falling back to the generic interpolator
+	 */
+	public static < T extends RealType< T > > boolean supports( RandomAccessibleInterval< T > image )
+	{
+		return createPrimitiveInterpolator( Views.extendZero( image ) ) != null;
+	}
+
+	/**
+	 * @return the primitive interpolator, or null if the input is not supported
+	 */
+	public static < T extends RealType< T > >
+	PrimitiveTrilinearInterpolator< T > createPrimitiveInterpolator( RandomAccessible< T > randomAccessible )
+	{
+		if ( ! ( randomAccessible instanceof ExtendedRandomAccessibleInterval ) ) return null;
+
+		final ExtendedRandomAccessibleInterval< T, ? > extended =
+				( ExtendedRandomAccessibleInterval< T, ? > ) randomAccessible;
+		final RandomAccessibleInterval< T > source = extended.getSource();
+		final OutOfBoundsFactory< T, ? > outOfBoundsFactory = extended.getOutOfBoundsFactory();
+
+		final double outOfBoundsValue;
+		final boolean clampToBorder;
+		if ( outOfBoundsFactory instanceof OutOfBoundsConstantValueFactory )
+		{
+			final Object constant = ( ( OutOfBoundsConstantValueFactory< ?, ? > ) outOfBoundsFactory ).getValue();
+			if ( ! ( constant instanceof RealType ) ) return null;
+			outOfBoundsValue = ( ( RealType< ? > ) constant ).getRealDouble();
+			clampToBorder = false;
+		}
+		else if ( outOfBoundsFactory instanceof OutOfBoundsBorderFactory )
+		{
+			outOfBoundsValue = 0;
+			clampToBorder = true;
+		}
+		else
+		{
+			return null;
+		}
+
+		final PrimitiveVolume volume = PrimitiveVolume.wrap( source );
+		if ( volume == null ) return null;
+
+		final T value = source.randomAccess().get().createVariable();
+
+		if ( value instanceof UnsignedByteType )
+			return new PrimitiveTrilinearInterpolator.UnsignedByteInterpolator<>( volume, value, outOfBoundsValue, clampToBorder );
+		else if ( value instanceof UnsignedShortType )
+			return new PrimitiveTrilinearInterpolator.UnsignedShortInterpolator<>( volume, value, outOfBoundsValue, clampToBorder );
+		else if ( value instanceof FloatType )
+			return new PrimitiveTrilinearInterpolator.FloatInterpolator<>( volume, value, outOfBoundsValue, clampToBorder );
+
+		return null;
+	}
+}
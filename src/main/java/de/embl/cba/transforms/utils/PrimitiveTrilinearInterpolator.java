@@ -0,0 +1,281 @@
+package de.embl.cba.transforms.utils;
+
+import net.imglib2.RealPoint;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Trilinear interpolation reading directly from the primitive arrays of a {@link PrimitiveVolume}.
+ *
+ * Integer types are interpolated with fixed-point weights ({@link #WEIGHT_BITS} bits per axis),
+ * floats with double precision. Out of bounds voxels either have a constant value
+ * or are clamped to the border.
+ */
+public abstract class PrimitiveTrilinearInterpolator< T extends RealType< T > >
+		extends RealPoint implements RealRandomAccess< T >
+{
+	public static final int WEIGHT_BITS = 12;
+	static final long ONE = 1L << WEIGHT_BITS;
+
+	protected final PrimitiveVolume volume;
+	protected final T value;
+	protected final double outOfBoundsValue;
+	protected final boolean clampToBorder;
+
+	private final long maxX;
+	private final long maxY;
+	private final long maxZ;
+
+	// the volume's voxels are addressed relative to its min
+	protected final double minX;
+	protected final double minY;
+	protected final double minZ;
+
+	PrimitiveTrilinearInterpolator(
+			PrimitiveVolume volume,
+			T value,
+			double outOfBoundsValue,
+			boolean clampToBorder )
+	{
+		super( 3 );
+		this.volume = volume;
+		this.value = value;
+		this.outOfBoundsValue = outOfBoundsValue;
+		this.clampToBorder = clampToBorder;
+		maxX = volume.dimensions[ 0 ] - 1;
+		maxY = volume.dimensions[ 1 ] - 1;
+		maxZ = volume.dimensions[ 2 ] - 1;
+		minX = volume.min[ 0 ];
+		minY = volume.min[ 1 ];
+		minZ = volume.min[ 2 ];
+	}
+
+	protected boolean isInside( long x0, long y0, long z0 )
+	{
+		return x0 >= 0 && x0 < maxX && y0 >= 0 && y0 < maxY && z0 >= 0 && z0 < maxZ;
+	}
+
+	/**
+	 * Locates a voxel that may lie outside of the volume.
+	 *
+	 * @return false if the voxel is outside and has the constant out of bounds value
+	 */
+	protected boolean locateOutOfBounds( long x, long y, long z )
+	{
+		if ( clampToBorder )
+		{
+			volume.locate(
+					Math.max( 0, Math.min( maxX, x ) ),
+					Math.max( 0, Math.min( maxY, y ) ),
+					Math.max( 0, Math.min( maxZ, z ) ) );
+			return true;
+		}
+
+		if ( x < 0 || x > maxX || y < 0 || y > maxY || z < 0 || z > maxZ )
+			return false;
+
+		volume.locate( x, y, z );
+		return true;
+	}
+
+	public abstract PrimitiveTrilinearInterpolator< T > copy();
+
+	public PrimitiveTrilinearInterpolator< T > copyRealRandomAccess()
+	{
+		return copy();
+	}
+
+	/**
+	 * Interpolator for 8 and 16 bit unsigned integer volumes.
+	 */
+	static abstract class IntegerInterpolator< T extends RealType< T > > extends PrimitiveTrilinearInterpolator< T >
+	{
+		private final long outOfBounds;
+
+		IntegerInterpolator( PrimitiveVolume volume, T value, double outOfBoundsValue, boolean clampToBorder )
+		{
+			super( volume, value, outOfBoundsValue, clampToBorder );
+			this.outOfBounds = Math.round( outOfBoundsValue );
+		}
+
+		abstract long read( Object array, int index );
+
+		@Override
+		public T get()
+		{
+			final double x = position[ 0 ] - minX;
+			final double y = position[ 1 ] - minY;
+			final double z = position[ 2 ] - minZ;
+
+			final long x0 = ( long ) Math.floor( x );
+			final long y0 = ( long ) Math.floor( y );
+			final long z0 = ( long ) Math.floor( z );
+
+			final long wx = Math.round( ( x - x0 ) * ONE );
+			final long wy = Math.round( ( y - y0 ) * ONE );
+			final long wz = Math.round( ( z - z0 ) * ONE );
+
+			final boolean inside = isInside( x0, y0, z0 );
+
+			final long v00 = row( x0, y0, z0, wx, inside );
+			final long v10 = row( x0, y0 + 1, z0, wx, inside );
+			final long v01 = row( x0, y0, z0 + 1, wx, inside );
+			final long v11 = row( x0, y0 + 1, z0 + 1, wx, inside );
+
+			final long v0 = ( ONE - wy ) * v00 + wy * v10;
+			final long v1 = ( ONE - wy ) * v01 + wy * v11;
+			final long v = ( ONE - wz ) * v0 + wz * v1;
+
+			value.setReal( ( v + ( 1L << ( 3 * WEIGHT_BITS - 1 ) ) ) >> ( 3 * WEIGHT_BITS ) );
+			return value;
+		}
+
+		/**
+		 * @return the interpolation along x between (x0, y, z) and (x0 + 1, y, z), scaled by {@link #ONE}
+		 */
+		private long row( long x0, long y, long z, long wx, boolean inside )
+		{
+			final long c0;
+			final long c1;
+
+			if ( inside )
+			{
+				volume.locate( x0, y, z );
+				c0 = read( volume.array, volume.index );
+				if ( volume.hasNextX )
+					c1 = read( volume.array, volume.index + 1 );
+				else
+				{
+					volume.locate( x0 + 1, y, z );
+					c1 = read( volume.array, volume.index );
+				}
+			}
+			else
+			{
+				c0 = locateOutOfBounds( x0, y, z ) ? read( volume.array, volume.index ) : outOfBounds;
+				c1 = locateOutOfBounds( x0 + 1, y, z ) ? read( volume.array, volume.index ) : outOfBounds;
+			}
+
+			return ( ONE - wx ) * c0 + wx * c1;
+		}
+	}
+
+	static class UnsignedByteInterpolator< T extends RealType< T > > extends IntegerInterpolator< T >
+	{
+		UnsignedByteInterpolator( PrimitiveVolume volume, T value, double outOfBoundsValue, boolean clampToBorder )
+		{
+			super( volume, value, outOfBoundsValue, clampToBorder );
+		}
+
+		@Override
+		long read( Object array, int index )
+		{
+			return ( ( byte[] ) array )[ index ] & 0xff;
+		}
+
+		@Override
+		public UnsignedByteInterpolator< T > copy()
+		{
+			final UnsignedByteInterpolator< T > copy = new UnsignedByteInterpolator<>(
+					volume.copy(), value.createVariable(), outOfBoundsValue, clampToBorder );
+			copy.setPosition( this );
+			return copy;
+		}
+	}
+
+	static class UnsignedShortInterpolator< T extends RealType< T > > extends IntegerInterpolator< T >
+	{
+		UnsignedShortInterpolator( PrimitiveVolume volume, T value, double outOfBoundsValue, boolean clampToBorder )
+		{
+			super( volume, value, outOfBoundsValue, clampToBorder );
+		}
+
+		@Override
+		long read( Object array, int index )
+		{
+			return ( ( short[] ) array )[ index ] & 0xffff;
+		}
+
+		@Override
+		public UnsignedShortInterpolator< T > copy()
+		{
+			final UnsignedShortInterpolator< T > copy = new UnsignedShortInterpolator<>(
+					volume.copy(), value.createVariable(), outOfBoundsValue, clampToBorder );
+			copy.setPosition( this );
+			return copy;
+		}
+	}
+
+	static class FloatInterpolator< T extends RealType< T > > extends PrimitiveTrilinearInterpolator< T >
+	{
+		FloatInterpolator( PrimitiveVolume volume, T value, double outOfBoundsValue, boolean clampToBorder )
+		{
+			super( volume, value, outOfBoundsValue, clampToBorder );
+		}
+
+		@Override
+		public T get()
+		{
+			final double x = position[ 0 ] - minX;
+			final double y = position[ 1 ] - minY;
+			final double z = position[ 2 ] - minZ;
+
+			final long x0 = ( long ) Math.floor( x );
+			final long y0 = ( long ) Math.floor( y );
+			final long z0 = ( long ) Math.floor( z );
+
+			final double wx = x - x0;
+			final double wy = y - y0;
+			final double wz = z - z0;
+
+			final boolean inside = isInside( x0, y0, z0 );
+
+			final double v00 = row( x0, y0, z0, wx, inside );
+			final double v10 = row( x0, y0 + 1, z0, wx, inside );
+			final double v01 = row( x0, y0, z0 + 1, wx, inside );
+			final double v11 = row( x0, y0 + 1, z0 + 1, wx, inside );
+
+			final double v0 = v00 + wy * ( v10 - v00 );
+			final double v1 = v01 + wy * ( v11 - v01 );
+
+			value.setReal( v0 + wz * ( v1 - v0 ) );
+			return value;
+		}
+
+		private double row( long x0, long y, long z, double wx, boolean inside )
+		{
+			final double c0;
+			final double c1;
+
+			if ( inside )
+			{
+				volume.locate( x0, y, z );
+				final float[] array = ( float[] ) volume.array;
+				c0 = array[ volume.index ];
+				if ( volume.hasNextX )
+					c1 = array[ volume.index + 1 ];
+				else
+				{
+					volume.locate( x0 + 1, y, z );
+					c1 = ( ( float[] ) volume.array )[ volume.index ];
+				}
+			}
+			else
+			{
+				c0 = locateOutOfBounds( x0, y, z ) ? ( ( float[] ) volume.array )[ volume.index ] : outOfBoundsValue;
+				c1 = locateOutOfBounds( x0 + 1, y, z ) ? ( ( float[] ) volume.array )[ volume.index ] : outOfBoundsValue;
+			}
+
+			return c0 + wx * ( c1 - c0 );
+		}
+
+		@Override
+		public FloatInterpolator< T > copy()
+		{
+			final FloatInterpolator< T > copy = new FloatInterpolator<>(
+					volume.copy(), value.createVariable(), outOfBoundsValue, clampToBorder );
+			copy.setPosition( this );
+			return copy;
+		}
+	}
+}
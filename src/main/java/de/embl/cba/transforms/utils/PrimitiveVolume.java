@@ -0,0 +1,266 @@
+package de.embl.cba.transforms.utils;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.transform.integer.MixedTransform;
+import net.imglib2.view.IntervalView;
+import net.imglib2.view.MixedTransformView;
+
+/**
+ * Direct access to the primitive arrays backing a 3D {@link ArrayImg},
+ * {@link PlanarImg} or cell image, also through intervals and integer translations of it,
+ * e.g. {@code Views.interval} or {@code Views.translate}.
+ *
+ * {@link #locate(long, long, long)} sets {@link #array} and {@link #index}
+ * to the storage of the given voxel, whose coordinates are relative to {@link #min}
+ * and which must lie within the wrapped interval.
+ */
+abstract class PrimitiveVolume
+{
+	final long[] min;
+	final long[] dimensions;
+
+	/**
+	 * Position of {@link #min} in the backing image.
+	 */
+	final long[] origin;
+
+	Object array;
+	int index;
+
+	/**
+	 * Whether the voxel at x + 1 is stored at {@code index + 1} of the same array.
+	 */
+	boolean hasNextX;
+
+	PrimitiveVolume( long[] min, long[] dimensions, long[] origin )
+	{
+		this.min = min;
+		this.dimensions = dimensions;
+		this.origin = origin;
+	}
+
+	abstract void locate( long x, long y, long z );
+
+	abstract PrimitiveVolume copy();
+
+	/**
+	 * @return the volume, or null if the image is not a supported 3D image
+	 * or a view of one that is not an interval or integer translation
+	 */
+	static PrimitiveVolume wrap( RandomAccessibleInterval< ? > rai )
+	{
+		if ( rai.numDimensions() != 3 ) return null;
+
+		final long[] min = new long[ 3 ];
+		final long[] dimensions = new long[ 3 ];
+		rai.min( min );
+		rai.dimensions( dimensions );
+
+		// follow the views down to the image, summing up their translations
+		final long[] origin = min.clone();
+		RandomAccessible< ? > source = rai;
+		while ( true )
+		{
+			if ( source instanceof IntervalView )
+			{
+				source = ( ( IntervalView< ? > ) source ).getSource();
+			}
+			else if ( source instanceof MixedTransformView )
+			{
+				final MixedTransform transform = ( ( MixedTransformView< ? > ) source ).getTransformToSource();
+				if ( ! isTranslation( transform ) ) return null;
+				for ( int d = 0; d < 3; ++d )
+					origin[ d ] += transform.getTranslation( d );
+				source = ( ( MixedTransformView< ? > ) source ).getSource();
+			}
+			else
+			{
+				break;
+			}
+		}
+
+		if ( ! ( source instanceof Interval ) || ! contains( ( Interval ) source, origin, dimensions ) ) return null;
+
+		if ( source instanceof ArrayImg )
+		{
+			final ArrayImg< ?, ? > img = ( ArrayImg< ?, ? > ) source;
+			final Object data = img.update( null );
+			if ( ! ( data instanceof ArrayDataAccess ) ) return null;
+			return new ArrayVolume( min, dimensions, origin,
+					new long[]{ img.dimension( 0 ), img.dimension( 1 ) },
+					( ( ArrayDataAccess< ? > ) data ).getCurrentStorageArray() );
+		}
+		else if ( source instanceof PlanarImg )
+		{
+			final PlanarImg< ?, ? > img = ( PlanarImg< ?, ? > ) source;
+			final Object[] planes = new Object[ img.numSlices() ];
+			for ( int z = 0; z < planes.length; ++z )
+			{
+				final Object plane = img.getPlane( z );
+				if ( ! ( plane instanceof ArrayDataAccess ) ) return null;
+				planes[ z ] = ( ( ArrayDataAccess< ? > ) plane ).getCurrentStorageArray();
+			}
+			return new PlanarVolume( min, dimensions, origin, img.dimension( 0 ), planes );
+		}
+		else if ( source instanceof AbstractCellImg )
+		{
+			return new CellVolume( min, dimensions, origin, ( AbstractCellImg ) source );
+		}
+
+		return null;
+	}
+
+	private static boolean isTranslation( MixedTransform transform )
+	{
+		if ( transform.numSourceDimensions() != 3 || transform.numTargetDimensions() != 3 ) return false;
+
+		for ( int d = 0; d < 3; ++d )
+			if ( transform.getComponentZero( d )
+					|| transform.getComponentMapping( d ) != d
+					|| transform.getComponentInversion( d ) )
+				return false;
+
+		return true;
+	}
+
+	private static boolean contains( Interval image, long[] origin, long[] dimensions )
+	{
+		for ( int d = 0; d < 3; ++d )
+			if ( origin[ d ] < image.min( d ) || origin[ d ] + dimensions[ d ] - 1 > image.max( d ) )
+				return false;
+
+		return true;
+	}
+
+	static class ArrayVolume extends PrimitiveVolume
+	{
+		private final long[] imageDimensions;
+		private final int sizeX;
+		private final int sizeXY;
+		private final int originIndex;
+
+		ArrayVolume( long[] min, long[] dimensions, long[] origin, long[] imageDimensions, Object array )
+		{
+			super( min, dimensions, origin );
+			this.array = array;
+			this.imageDimensions = imageDimensions;
+			this.sizeX = ( int ) imageDimensions[ 0 ];
+			this.sizeXY = ( int ) ( imageDimensions[ 0 ] * imageDimensions[ 1 ] );
+			this.originIndex = ( int ) origin[ 0 ] + sizeX * ( int ) origin[ 1 ] + sizeXY * ( int ) origin[ 2 ];
+		}
+
+		@Override
+		void locate( long x, long y, long z )
+		{
+			index = originIndex + ( int ) x + sizeX * ( int ) y + sizeXY * ( int ) z;
+			hasNextX = origin[ 0 ] + x + 1 < sizeX;
+		}
+
+		@Override
+		PrimitiveVolume copy()
+		{
+			return new ArrayVolume( min, dimensions, origin, imageDimensions, array );
+		}
+	}
+
+	static class PlanarVolume extends PrimitiveVolume
+	{
+		private final Object[] planes;
+		private final int sizeX;
+
+		PlanarVolume( long[] min, long[] dimensions, long[] origin, long sizeX, Object[] planes )
+		{
+			super( min, dimensions, origin );
+			this.planes = planes;
+			this.sizeX = ( int ) sizeX;
+		}
+
+		@Override
+		void locate( long x, long y, long z )
+		{
+			x += origin[ 0 ];
+			array = planes[ ( int ) ( z + origin[ 2 ] ) ];
+			index = ( int ) x + sizeX * ( int ) ( y + origin[ 1 ] );
+			hasNextX = x + 1 < sizeX;
+		}
+
+		@Override
+		PrimitiveVolume copy()
+		{
+			return new PlanarVolume( min, dimensions, origin, sizeX, planes );
+		}
+	}
+
+	static class CellVolume extends PrimitiveVolume
+	{
+		private final AbstractCellImg img;
+		private final RandomAccess< ? > cells;
+		private final int[] cellDimensions = new int[ 3 ];
+		private final long[] gridPosition = new long[ 3 ];
+		private final long[] cellMin = new long[ 3 ];
+		private final long[] cellMax = new long[ 3 ];
+		private final int[] currentCellDimensions = new int[ 3 ];
+
+		CellVolume( long[] min, long[] dimensions, long[] origin, AbstractCellImg img )
+		{
+			super( min, dimensions, origin );
+			this.img = img;
+			this.cells = img.getCells().randomAccess();
+			img.getCellGrid().cellDimensions( cellDimensions );
+
+			// nothing is cached yet
+			cellMin[ 0 ] = 1;
+			cellMax[ 0 ] = 0;
+		}
+
+		@Override
+		void locate( long x, long y, long z )
+		{
+			x += origin[ 0 ];
+			y += origin[ 1 ];
+			z += origin[ 2 ];
+
+			if ( x < cellMin[ 0 ] || x > cellMax[ 0 ]
+					|| y < cellMin[ 1 ] || y > cellMax[ 1 ]
+					|| z < cellMin[ 2 ] || z > cellMax[ 2 ] )
+				updateCell( x, y, z );
+
+			index = ( int ) ( x - cellMin[ 0 ] )
+					+ currentCellDimensions[ 0 ] * ( ( int ) ( y - cellMin[ 1 ] )
+					+ currentCellDimensions[ 1 ] * ( int ) ( z - cellMin[ 2 ] ) );
+			hasNextX = x + 1 <= cellMax[ 0 ];
+		}
+
+		private void updateCell( long x, long y, long z )
+		{
+			gridPosition[ 0 ] = x / cellDimensions[ 0 ];
+			gridPosition[ 1 ] = y / cellDimensions[ 1 ];
+			gridPosition[ 2 ] = z / cellDimensions[ 2 ];
+
+			cells.setPosition( gridPosition );
+			final Cell< ? > cell = ( Cell< ? > ) cells.get();
+			array = ( ( ArrayDataAccess< ? > ) cell.getData() ).getCurrentStorageArray();
+
+			for ( int d = 0; d < 3; ++d )
+			{
+				cellMin[ d ] = cell.min( d );
+				cellMax[ d ] = cell.max( d );
+				currentCellDimensions[ d ] = ( int ) cell.dimension( d );
+			}
+		}
+
+		@Override
+		PrimitiveVolume copy()
+		{
+			return new CellVolume( min, dimensions, origin, img );
+		}
+	}
+}
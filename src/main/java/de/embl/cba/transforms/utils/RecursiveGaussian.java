@@ -0,0 +1,287 @@
+package de.embl.cba.transforms.utils;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+
+import java.util.function.Supplier;
+
+/**
+ * Gaussian blur whose cost per voxel does not depend on sigma.
+ *
+ * Along axes with a sigma of at least {@link #SIGMA_THRESHOLD}, the recursive (IIR)
+ * approximation of Young and van Vliet (Signal Processing 44, 1995) is used;
+ * smaller sigmas, for which the approximation is less accurate and the kernel is short anyway,
+ * are convolved with the {@link Gauss3} kernel.
+ *
+ * The target interval plus a halo is read from the source into a float buffer,
+ * which is filtered in place, axis by axis and in parallel over lines.
+ */
+public abstract class RecursiveGaussian
+{
+	/**
+	 * Sigma from which on the recursive filter is used.
+	 */
+	public static final double SIGMA_THRESHOLD = 3.0;
+
+	/**
+	 * Halo, in units of sigma, that is read around the target for the recursive filter.
+	 */
+	public static final double HALO_SIGMAS = 4.0;
+
+	public static < S extends RealType< S >, T extends RealType< T > >
+	void gauss(
+			double[] sigmas,
+			RandomAccessible< S > source,
+			RandomAccessibleInterval< T > target,
+			int numThreads )
+	{
+		final int n = target.numDimensions();
+
+		final long[] halo = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+			halo[ d ] = halo( sigmas[ d ] );
+
+		final Interval bufferInterval = Intervals.expand( target, halo );
+		final long[] dimensions = Intervals.dimensionsAsLongArray( bufferInterval );
+
+		if ( ! fitsIntoBuffer( target, sigmas ) )
+			throw new IllegalArgumentException( "Image too large for a recursive Gaussian: "
+					+ Intervals.numElements( bufferInterval ) + " voxels (including halo)." );
+
+		final float[] buffer = new float[ ( int ) Intervals.numElements( bufferInterval ) ];
+		final long[] strides = SeparableResampler.strides( dimensions );
+
+		// read source
+		forEachLine( dimensions, 0, numThreads, () -> {
+			final RandomAccess< S > in = source.randomAccess( bufferInterval );
+			return position -> {
+				for ( int d = 0; d < n; ++d )
+					in.setPosition( bufferInterval.min( d ) + position[ d ], d );
+
+				int index = ( int ) offset( position, strides );
+				for ( int i = 0; i < dimensions[ 0 ]; ++i, ++index )
+				{
+					buffer[ index ] = in.get().getRealFloat();
+					in.fwd( 0 );
+				}
+			};
+		} );
+
+		// filter along each axis
+		for ( int d = 0; d < n; ++d )
+		{
+			if ( sigmas[ d ] <= 0 ) continue;
+
+			final int axis = d;
+			final double sigma = sigmas[ d ];
+			final int length = ( int ) dimensions[ axis ];
+			final long stride = strides[ axis ];
+
+			forEachLine( dimensions, axis, numThreads, () -> {
+				final double[] values = new double[ length ];
+				final double[] temp = new double[ length ];
+				final double[] coefficients = sigma >= SIGMA_THRESHOLD ? coefficients( sigma ) : null;
+				final double[] halfKernel = sigma >= SIGMA_THRESHOLD ? null : Gauss3.halfkernels( new double[]{ sigma } )[ 0 ];
+
+				return position -> {
+					final int start = ( int ) offset( position, strides );
+
+					for ( int i = 0, index = start; i < length; ++i, index += stride )
+						values[ i ] = buffer[ index ];
+
+					if ( coefficients != null )
+						recursiveFilter( values, coefficients );
+					else
+						convolve( values, temp, halfKernel );
+
+					for ( int i = 0, index = start; i < length; ++i, index += stride )
+						buffer[ index ] = ( float ) values[ i ];
+				};
+			} );
+		}
+
+		// write target
+		final long[] targetDimensions = Intervals.dimensionsAsLongArray( target );
+		forEachLine( targetDimensions, 0, numThreads, () -> {
+			final RandomAccess< T > out = target.randomAccess();
+			final long[] bufferPosition = new long[ n ];
+			return position -> {
+				for ( int d = 0; d < n; ++d )
+				{
+					out.setPosition( target.min( d ) + position[ d ], d );
+					bufferPosition[ d ] = position[ d ] + halo[ d ];
+				}
+
+				int index = ( int ) offset( bufferPosition, strides );
+				for ( int i = 0; i < targetDimensions[ 0 ]; ++i, ++index )
+				{
+					out.get().setReal( buffer[ index ] );
+					out.fwd( 0 );
+				}
+			};
+		} );
+	}
+
+	public static boolean fitsIntoBuffer( Interval target, double[] sigmas )
+	{
+		long numElements = 1;
+		for ( int d = 0; d < target.numDimensions(); ++d )
+			numElements *= target.dimension( d ) + 2 * halo( sigmas[ d ] );
+
+		return numElements < Integer.MAX_VALUE - 1;
+	}
+
+	static long halo( double sigma )
+	{
+		if ( sigma <= 0 ) return 0;
+		if ( sigma < SIGMA_THRESHOLD ) return Gauss3.halfkernelsizes( new double[]{ sigma } )[ 0 ] - 1;
+		return ( long ) Math.ceil( HALO_SIGMAS * sigma );
+	}
+
+	/**
+	 * @return { B, b1 / b0, b2 / b0, b3 / b0 }
+	 */
+	static double[] coefficients( double sigma )
+	{
+		final double q;
+		if ( sigma >= 2.5 )
+			q = 0.98711 * sigma - 0.96330;
+		else
+			q = 3.97156 - 4.14554 * Math.sqrt( 1.0 - 0.26891 * sigma );
+
+		final double q2 = q * q;
+		final double q3 = q2 * q;
+
+		final double b0 = 1.57825 + 2.44413 * q + 1.4281 * q2 + 0.422205 * q3;
+		final double b1 = 2.44413 * q + 2.85619 * q2 + 1.26661 * q3;
+		final double b2 = -( 1.4281 * q2 + 1.26661 * q3 );
+		final double b3 = 0.422205 * q3;
+
+		final double a1 = b1 / b0;
+		final double a2 = b2 / b0;
+		final double a3 = b3 / b0;
+
+		return new double[]{ 1.0 - ( a1 + a2 + a3 ), a1, a2, a3 };
+	}
+
+	/**
+	 * Causal and anti-causal pass, initialized with the steady state of the border values.
+	 */
+	static void recursiveFilter( double[] values, double[] coefficients )
+	{
+		final double B = coefficients[ 0 ];
+		final double a1 = coefficients[ 1 ];
+		final double a2 = coefficients[ 2 ];
+		final double a3 = coefficients[ 3 ];
+
+		final int length = values.length;
+
+		double w1 = values[ 0 ], w2 = w1, w3 = w1;
+		for ( int i = 0; i < length; ++i )
+		{
+			final double w = B * values[ i ] + a1 * w1 + a2 * w2 + a3 * w3;
+			values[ i ] = w;
+			w3 = w2;
+			w2 = w1;
+			w1 = w;
+		}
+
+		w1 = values[ length - 1 ];
+		w2 = w1;
+		w3 = w1;
+		for ( int i = length - 1; i >= 0; --i )
+		{
+			final double w = B * values[ i ] + a1 * w1 + a2 * w2 + a3 * w3;
+			values[ i ] = w;
+			w3 = w2;
+			w2 = w1;
+			w1 = w;
+		}
+	}
+
+	static void convolve( double[] values, double[] temp, double[] halfKernel )
+	{
+		final int length = values.length;
+		System.arraycopy( values, 0, temp, 0, length );
+
+		for ( int i = 0; i < length; ++i )
+		{
+			double sum = halfKernel[ 0 ] * temp[ i ];
+			for ( int k = 1; k < halfKernel.length; ++k )
+				sum += halfKernel[ k ] * ( temp[ Math.max( 0, i - k ) ] + temp[ Math.min( length - 1, i + k ) ] );
+			values[ i ] = sum;
+		}
+	}
+
+	interface LineWorker
+	{
+		void process( long[] position );
+	}
+
+	/**
+	 * Calls the worker for the start position of each line along the axis, in parallel.
+	 */
+	private static void forEachLine(
+			long[] dimensions,
+			int axis,
+			int numThreads,
+			Supplier< LineWorker > workerFactory )
+	{
+		final int n = dimensions.length;
+		final long[] lineMax = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+			lineMax[ d ] = d == axis ? 0 : dimensions[ d ] - 1;
+
+		final int[] blockSize = Resampler.defaultBlockSize( n );
+		blockSize[ axis ] = 1;
+
+		Resampler.forEachBlock(
+				new FinalInterval( new long[ n ], lineMax ),
+				blockSize,
+				numThreads,
+				() -> {
+					final LineWorker worker = workerFactory.get();
+					final long[] position = new long[ n ];
+					return block -> {
+						block.min( position );
+						do
+						{
+							worker.process( position );
+						}
+						while ( nextLine( position, block, axis ) );
+					};
+				} );
+	}
+
+	private static boolean nextLine( long[] position, Interval block, int axis )
+	{
+		for ( int d = 0; d < position.length; ++d )
+		{
+			if ( d == axis ) continue;
+
+			if ( position[ d ] < block.max( d ) )
+			{
+				position[ d ]++;
+				return true;
+			}
+
+			position[ d ] = block.min( d );
+		}
+
+		return false;
+	}
+
+	private static long offset( long[] position, long[] strides )
+	{
+		long offset = 0;
+		for ( int d = 0; d < position.length; ++d )
+			offset += position[ d ] * strides[ d ];
+		return offset;
+	}
+}
@@ -0,0 +1,582 @@
+package de.embl.cba.transforms.utils;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.interpolation.InterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.ClampingNLinearInterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.realtransform.AffineGet;
+import net.imglib2.realtransform.InvertibleRealTransform;
+import net.imglib2.realtransform.RealTransform;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.Type;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Supplier;
+
+/**
+ * Materializes transformed images block by block on a fork-join pool.
+ *
+ * Each worker thread owns one sampler (interpolator, transform copy and
+ * coordinate buffers), which it reuses for all the blocks it processes.
+ */
+public abstract class Resampler
+{
+	public static final int DEFAULT_BLOCK_SIZE_XY = 64;
+	public static final int DEFAULT_BLOCK_SIZE_Z = 16;
+
+	public static < T extends NumericType< T > & NativeType< T > >
+	RandomAccessibleInterval< T > resample(
+			RandomAccessibleInterval< T > source,
+			InvertibleRealTransform transform,
+			Interval outputInterval,
+			InterpolatorFactory interpolatorFactory,
+			int numThreads )
+	{
+		final RandomAccessibleInterval< T > output =
+				ImageCreators.createEmptyImg( outputInterval, source.randomAccess().get() );
+
+		resample( source, transform, output, interpolatorFactory, numThreads );
+
+		return output;
+	}
+
+	public static < T extends NumericType< T > & NativeType< T > >
+	void resample(
+			RandomAccessibleInterval< T > source,
+			InvertibleRealTransform transform,
+			RandomAccessibleInterval< T > output,
+			InterpolatorFactory interpolatorFactory,
+			int numThreads )
+	{
+		final RealRandomAccessible< T > rra =
+				Views.interpolate( Views.extendZero( source ), interpolatorFactory );
+
+		final int[] blockSize = defaultBlockSize( output.numDimensions() );
+
+		final ExactTransforms.SignedPermutation permutation =
+				ExactTransforms.classify( transform, ExactTransforms.TOLERANCE );
+
+		if ( permutation != null )
+		{
+			final RandomAccessibleInterval< T > exactView = Views.interval(
+					ExactTransforms.createExactView( Views.extendZero( source ), permutation ),
+					output );
+
+			forEachBlock(
+					output,
+					blockSize,
+					numThreads,
+					() -> new CopyWorker<>( exactView, output ) );
+		}
+		else if ( transform instanceof AffineGet )
+		{
+			final AffineRaster raster = new AffineRaster( ( AffineGet ) transform );
+
+			// outside of this box the interpolated, zero-extended source is zero
+			final double margin = supportRadius( interpolatorFactory );
+			final double[] sourceMin = new double[ source.numDimensions() ];
+			final double[] sourceMax = new double[ source.numDimensions() ];
+			for ( int d = 0; d < sourceMin.length; ++d )
+			{
+				sourceMin[ d ] = source.min( d ) - margin;
+				sourceMax[ d ] = source.max( d ) + margin;
+			}
+
+			final T background = Util.getTypeFromInterval( output ).createVariable();
+			background.setZero();
+
+			forEachBlock(
+					output,
+					blockSize,
+					numThreads,
+					() -> new AffineResamplingWorker<>( rra, raster.copy(), output, sourceMin, sourceMax, background ) );
+		}
+		else
+		{
+			// the output grid is sampled with the inverse, i.e. from target into source space,
+			// in batches if it is a BatchRealTransform, e.g. of BatchedThinPlateSpline.createInvertible
+			resampleTargetToSource( source, transform.inverse(), output, interpolatorFactory, numThreads );
+		}
+	}
+
+	/**
+	 * Resamples with a transform from target (output) into source space, which needs not be invertible,
+	 * e.g. a {@link net.imglib2.realtransform.ThinplateSplineTransform} estimated from landmarks
+	 * or a {@link DisplacementFieldCache}.
+	 */
+	public static < T extends NumericType< T > & NativeType< T > >
+	RandomAccessibleInterval< T > resampleTargetToSource(
+			RandomAccessibleInterval< T > source,
+			RealTransform targetToSource,
+			Interval outputInterval,
+			InterpolatorFactory interpolatorFactory,
+			int numThreads )
+	{
+		final RandomAccessibleInterval< T > output =
+				ImageCreators.createEmptyImg( outputInterval, source.randomAccess().get() );
+
+		resampleTargetToSource( source, targetToSource, output, interpolatorFactory, numThreads );
+
+		return output;
+	}
+
+	public static < T extends NumericType< T > & NativeType< T > >
+	void resampleTargetToSource(
+			RandomAccessibleInterval< T > source,
+			RealTransform targetToSource,
+			RandomAccessibleInterval< T > output,
+			InterpolatorFactory interpolatorFactory,
+			int numThreads )
+	{
+		final RealRandomAccessible< T > rra =
+				Views.interpolate( Views.extendZero( source ), interpolatorFactory );
+
+		// e.g. thin-plate splines, which evaluate whole rows at once
+		if ( targetToSource instanceof BatchRealTransform )
+			forEachBlock(
+					output,
+					defaultBlockSize( output.numDimensions() ),
+					numThreads,
+					() -> new BatchResamplingWorker<>( rra, ( BatchRealTransform ) targetToSource.copy(), output ) );
+		else
+			forEachBlock(
+					output,
+					defaultBlockSize( output.numDimensions() ),
+					numThreads,
+					() -> new ResamplingWorker<>( rra, targetToSource.copy(), output ) );
+	}
+
+	/**
+	 * Copies a (lazy) view into a newly allocated image, block by block.
+	 */
+	public static < T extends NativeType< T > >
+	RandomAccessibleInterval< T > materialize(
+			RandomAccessibleInterval< T > view,
+			int numThreads )
+	{
+		final RandomAccessibleInterval< T > output =
+				ImageCreators.createEmptyImg( view, view.randomAccess().get() );
+
+		materialize( view, output, numThreads );
+
+		return output;
+	}
+
+	/**
+	 * Copies a (lazy) view into the given output image, block by block.
+	 */
+	public static < T extends NativeType< T > >
+	void materialize(
+			RandomAccessibleInterval< T > view,
+			RandomAccessibleInterval< T > output,
+			int numThreads )
+	{
+		forEachBlock(
+				output,
+				defaultBlockSize( output.numDimensions() ),
+				numThreads,
+				() -> new CopyWorker<>( view, output ) );
+	}
+
+	/**
+	 * @return the distance from the source interval beyond which the interpolator only sees the
+	 * out-of-bounds background; conservative for interpolators other than nearest neighbor and n-linear
+	 */
+	static double supportRadius( InterpolatorFactory interpolatorFactory )
+	{
+		if ( interpolatorFactory instanceof NearestNeighborInterpolatorFactory
+				|| interpolatorFactory instanceof NLinearInterpolatorFactory
+				|| interpolatorFactory instanceof ClampingNLinearInterpolatorFactory
+				|| interpolatorFactory instanceof PrimitiveNLinearInterpolatorFactory )
+			return 1;
+
+		return 4;
+	}
+
+	public static int[] defaultBlockSize( int numDimensions )
+	{
+		final int[] blockSize = new int[ numDimensions ];
+
+		for ( int d = 0; d < numDimensions; ++d )
+			blockSize[ d ] = d < 2 ? DEFAULT_BLOCK_SIZE_XY : DEFAULT_BLOCK_SIZE_Z;
+
+		return blockSize;
+	}
+
+	/**
+	 * Splits the interval into blocks and processes them in parallel.
+	 * Each thread of the pool gets its own {@link BlockWorker}.
+	 */
+	public static void forEachBlock(
+			Interval interval,
+			int[] blockSize,
+			int numThreads,
+			Supplier< BlockWorker > workerFactory )
+	{
+		final BlockGrid grid = new BlockGrid( interval, blockSize );
+		final ThreadLocal< BlockWorker > workers = ThreadLocal.withInitial( workerFactory );
+
+		final ForkJoinPool pool = new ForkJoinPool( Math.max( 1, numThreads ) );
+		try
+		{
+			pool.invoke( new BlockTask( grid, workers, 0, grid.numBlocks() ) );
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	public interface BlockWorker
+	{
+		void process( Interval block );
+	}
+
+	/**
+	 * Moves the position to the start of the next row (along dimension 0) of the interval.
+	 *
+	 * @return false if there is no next row
+	 */
+	static boolean nextRow( long[] position, Interval interval )
+	{
+		for ( int d = 1; d < position.length; ++d )
+		{
+			if ( position[ d ] < interval.max( d ) )
+			{
+				position[ d ]++;
+				return true;
+			}
+
+			position[ d ] = interval.min( d );
+		}
+
+		return false;
+	}
+
+	static class BlockGrid
+	{
+		private final Interval interval;
+		private final int[] blockSize;
+		private final long[] numBlocksPerDimension;
+		private final long numBlocks;
+
+		BlockGrid( Interval interval, int[] blockSize )
+		{
+			this.interval = interval;
+			this.blockSize = blockSize;
+
+			final int n = interval.numDimensions();
+			numBlocksPerDimension = new long[ n ];
+
+			long numBlocks = 1;
+			for ( int d = 0; d < n; ++d )
+			{
+				numBlocksPerDimension[ d ] = ( interval.dimension( d ) - 1 ) / blockSize[ d ] + 1;
+				numBlocks *= numBlocksPerDimension[ d ];
+			}
+			this.numBlocks = numBlocks;
+		}
+
+		long numBlocks()
+		{
+			return numBlocks;
+		}
+
+		Interval block( long index )
+		{
+			final int n = interval.numDimensions();
+			final long[] min = new long[ n ];
+			final long[] max = new long[ n ];
+
+			for ( int d = 0; d < n; ++d )
+			{
+				final long gridPosition = index % numBlocksPerDimension[ d ];
+				index /= numBlocksPerDimension[ d ];
+
+				min[ d ] = interval.min( d ) + gridPosition * blockSize[ d ];
+				max[ d ] = Math.min( min[ d ] + blockSize[ d ] - 1, interval.max( d ) );
+			}
+
+			return new FinalInterval( min, max );
+		}
+	}
+
+	private static class BlockTask extends RecursiveAction
+	{
+		private final BlockGrid grid;
+		private final ThreadLocal< BlockWorker > workers;
+		private final long from;
+		private final long to;
+
+		BlockTask( BlockGrid grid, ThreadLocal< BlockWorker > workers, long from, long to )
+		{
+			this.grid = grid;
+			this.workers = workers;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if ( to - from > 1 )
+			{
+				final long middle = ( from + to ) / 2;
+				invokeAll(
+						new BlockTask( grid, workers, from, middle ),
+						new BlockTask( grid, workers, middle, to ) );
+			}
+			else if ( to > from )
+			{
+				workers.get().process( grid.block( from ) );
+			}
+		}
+	}
+
+	private static class ResamplingWorker< T extends Type< T > > implements BlockWorker
+	{
+		private final RealRandomAccess< T > sampler;
+		private final RealTransform targetToSource;
+		private final RandomAccess< T > out;
+		private final long[] position;
+		private final double[] target;
+		private final double[] source;
+
+		ResamplingWorker(
+				RealRandomAccessible< T > rra,
+				RealTransform targetToSource,
+				RandomAccessible< T > output )
+		{
+			this.sampler = rra.realRandomAccess();
+			this.targetToSource = targetToSource;
+			this.out = output.randomAccess();
+
+			final int n = output.numDimensions();
+			this.position = new long[ n ];
+			this.target = new double[ n ];
+			this.source = new double[ rra.numDimensions() ];
+		}
+
+		@Override
+		public void process( Interval block )
+		{
+			final long rowLength = block.dimension( 0 );
+			block.min( position );
+
+			do
+			{
+				out.setPosition( position );
+				for ( int d = 0; d < position.length; ++d )
+					target[ d ] = position[ d ];
+
+				for ( long x = 0; x < rowLength; ++x )
+				{
+					targetToSource.apply( target, source );
+					sampler.setPosition( source );
+					out.get().set( sampler.get() );
+					out.fwd( 0 );
+					target[ 0 ] += 1;
+				}
+			}
+			while ( nextRow( position, block ) );
+		}
+	}
+
+	/**
+	 * Transforms the coordinates of a whole row with one call.
+	 */
+	private static class BatchResamplingWorker< T extends Type< T > > implements BlockWorker
+	{
+		private final RealRandomAccess< T > sampler;
+		private final BatchRealTransform targetToSource;
+		private final RandomAccess< T > out;
+		private final long[] position;
+		private final double[] point;
+		private double[][] targetRow = new double[ 0 ][ 0 ];
+		private double[][] sourceRow = new double[ 0 ][ 0 ];
+
+		BatchResamplingWorker(
+				RealRandomAccessible< T > rra,
+				BatchRealTransform targetToSource,
+				RandomAccessible< T > output )
+		{
+			this.sampler = rra.realRandomAccess();
+			this.targetToSource = targetToSource;
+			this.out = output.randomAccess();
+			this.position = new long[ output.numDimensions() ];
+			this.point = new double[ rra.numDimensions() ];
+		}
+
+		@Override
+		public void process( Interval block )
+		{
+			final int rowLength = ( int ) block.dimension( 0 );
+			if ( targetRow.length == 0 || targetRow[ 0 ].length < rowLength )
+			{
+				targetRow = new double[ position.length ][ rowLength ];
+				sourceRow = new double[ point.length ][ rowLength ];
+			}
+
+			block.min( position );
+
+			do
+			{
+				for ( int x = 0; x < rowLength; ++x )
+					targetRow[ 0 ][ x ] = position[ 0 ] + x;
+				for ( int d = 1; d < position.length; ++d )
+					Arrays.fill( targetRow[ d ], 0, rowLength, position[ d ] );
+
+				targetToSource.apply( targetRow, sourceRow, rowLength );
+
+				out.setPosition( position );
+				for ( int x = 0; x < rowLength; ++x )
+				{
+					for ( int d = 0; d < point.length; ++d )
+						point[ d ] = sourceRow[ d ][ x ];
+
+					sampler.setPosition( point );
+					out.get().set( sampler.get() );
+					out.fwd( 0 );
+				}
+			}
+			while ( nextRow( position, block ) );
+		}
+	}
+
+	/**
+	 * Blocks whose source footprint misses the source box are filled with the background,
+	 * in all other blocks only the span of each row that maps into the source box is interpolated.
+	 */
+	private static class AffineResamplingWorker< T extends Type< T > > implements BlockWorker
+	{
+		private final RealRandomAccess< T > sampler;
+		private final AffineRaster raster;
+		private final RandomAccess< T > out;
+		private final double[] sourceMin;
+		private final double[] sourceMax;
+		private final T background;
+		private final double[] blockMin;
+		private final double[] blockMax;
+		private final long[] span = new long[ 2 ];
+
+		AffineResamplingWorker(
+				RealRandomAccessible< T > rra,
+				AffineRaster raster,
+				RandomAccessible< T > output,
+				double[] sourceMin,
+				double[] sourceMax,
+				T background )
+		{
+			this.sampler = rra.realRandomAccess();
+			this.raster = raster;
+			this.out = output.randomAccess();
+			this.sourceMin = sourceMin;
+			this.sourceMax = sourceMax;
+			this.background = background;
+			this.blockMin = new double[ sourceMin.length ];
+			this.blockMax = new double[ sourceMin.length ];
+		}
+
+		@Override
+		public void process( Interval block )
+		{
+			final long rowLength = block.dimension( 0 );
+			final double[] source = raster.source();
+			raster.setBlock( block );
+			raster.sourceBounds( blockMin, blockMax );
+
+			final boolean outside = ! overlaps( blockMin, blockMax, sourceMin, sourceMax );
+
+			do
+			{
+				out.setPosition( raster.rowPosition() );
+
+				if ( outside || ! raster.rowSpan( sourceMin, sourceMax, span ) )
+				{
+					fill( rowLength );
+					continue;
+				}
+
+				fill( span[ 0 ] );
+				raster.fwd( span[ 0 ] );
+
+				for ( long x = span[ 0 ]; x <= span[ 1 ]; ++x )
+				{
+					sampler.setPosition( source );
+					out.get().set( sampler.get() );
+					out.fwd( 0 );
+					raster.fwd();
+				}
+
+				fill( rowLength - 1 - span[ 1 ] );
+			}
+			while ( raster.nextRow() );
+		}
+
+		private void fill( long n )
+		{
+			for ( long x = 0; x < n; ++x )
+			{
+				out.get().set( background );
+				out.fwd( 0 );
+			}
+		}
+
+		private static boolean overlaps( double[] aMin, double[] aMax, double[] bMin, double[] bMax )
+		{
+			for ( int d = 0; d < aMin.length; ++d )
+				if ( aMax[ d ] < bMin[ d ] || aMin[ d ] > bMax[ d ] )
+					return false;
+
+			return true;
+		}
+	}
+
+	private static class CopyWorker< T extends Type< T > > implements BlockWorker
+	{
+		private final RandomAccessibleInterval< T > input;
+		private final RandomAccess< T > out;
+		private final long[] position;
+
+		CopyWorker( RandomAccessibleInterval< T > input, RandomAccessible< T > output )
+		{
+			this.input = input;
+			this.out = output.randomAccess();
+			this.position = new long[ input.numDimensions() ];
+		}
+
+		@Override
+		public void process( Interval block )
+		{
+			final RandomAccess< T > in = input.randomAccess( block );
+			final long rowLength = block.dimension( 0 );
+			block.min( position );
+
+			do
+			{
+				in.setPosition( position );
+				out.setPosition( position );
+
+				for ( long x = 0; x < rowLength; ++x )
+				{
+					out.get().set( in.get() );
+					in.fwd( 0 );
+					out.fwd( 0 );
+				}
+			}
+			while ( nextRow( position, block ) );
+		}
+	}
+}
@@ -1,21 +1,34 @@
 package de.embl.cba.transforms.utils;
 
+import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealRandomAccessible;
 import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.DiskCachedCellImgOptions.CacheType;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.realtransform.RealViews;
 import net.imglib2.realtransform.Scale;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 import static de.embl.cba.transforms.utils.ImageCreators.*;
 import static de.embl.cba.transforms.utils.Transforms.createTransformedInterval;
 
 public abstract class Scalings
 {
+	/**
+	 * Minimal ratio of the cell length to the blur halo, see {@link #blurCellDimensions}.
+	 */
+	private static final int HALO_CELL_RATIO = 8;
 
 	public static < T extends RealType< T > & NativeType< T > >
 	RandomAccessibleInterval< T > createRescaledArrayImg(
@@ -37,7 +50,18 @@ public abstract class Scalings
 		 */
 
 		/*
-		 * Blur image
+		 * Blur and sample in one go, evaluating the blur only at the output positions;
+		 * the kernel grows with sigma, but the output shrinks by the same factor,
+		 * such that the cost per input voxel stays flat
+		 */
+
+		final RandomAccessibleInterval< T > downsampled =
+				createBlurredAndResampledImg( input, scalingFactors );
+
+		if ( downsampled != null ) return downsampled;
+
+		/*
+		 * Blur image, if the intermediate buffers of the fused version are too large
 		 */
 
 		final RandomAccessibleInterval< T > blurred =
@@ -57,6 +81,19 @@ public abstract class Scalings
 	RandomAccessibleInterval< T > createRescaledCellImg(
 			RandomAccessibleInterval< T > input,
 			double[] scalingFactors )
+	{
+		return createRescaledCellImg( input, scalingFactors, defaultCacheSizeInBytes() );
+	}
+
+	/**
+	 * Memory efficient version of {@link #createRescaledArrayImg}: the input is blurred lazily, cell by cell,
+	 * keeping at most cacheSizeInBytes of blurred data in memory, and the output is written into a cell image.
+	 */
+	public static < T extends RealType< T > & NativeType< T > >
+	RandomAccessibleInterval< T > createRescaledCellImg(
+			RandomAccessibleInterval< T > input,
+			double[] scalingFactors,
+			long cacheSizeInBytes )
 	{
 		assert scalingFactors.length == input.numDimensions();
 
@@ -77,14 +114,14 @@ public abstract class Scalings
 		 */
 
 		final RandomAccessibleInterval< T > blurred =
-				createOptimallyBlurredCellImg( input, scalingFactors );
+				createOptimallyBlurredCellImg( input, scalingFactors, cacheSizeInBytes );
 
 		/*
 		 * Sample values from blurred image
 		 */
 
 		final RandomAccessibleInterval< T > resampled =
-				createResampledArrayImg( blurred, scalingFactors );
+				createResampledCellImg( blurred, scalingFactors );
 
 		return resampled;
 	}
@@ -94,6 +131,13 @@ public abstract class Scalings
 			RandomAccessibleInterval< T > input,
 			double[] scalingFactors )
 	{
+		// Same result as interpolating the scaled view below, but with precomputed
+		// per-axis weights and one pass per dimension instead of 2^n samples per voxel
+		final RandomAccessibleInterval< T > separable =
+				createSeparablyResampledImg( input, scalingFactors );
+
+		if ( separable != null ) return separable;
+
 		// Convert to RealRandomAccessible such that we can obtain values at (infinite) non-integer coordinates
 		RealRandomAccessible< T > rra =
 				Views.interpolate( Views.extendBorder( input ),
@@ -119,6 +163,157 @@ public abstract class Scalings
 		return output;
 	}
 
+	/**
+	 * Cell image version of {@link #createResampledArrayImg}, for inputs such as the lazily blurred
+	 * cell image of {@link #createRescaledCellImg}: the scaled view is linearly interpolated
+	 * and written, block by block and in parallel, into a cell image of the output size.
+	 */
+	public static < T extends RealType< T > & NativeType< T > >
+	RandomAccessibleInterval< T > createResampledCellImg(
+			RandomAccessibleInterval< T > input,
+			double[] scalingFactors )
+	{
+		RealRandomAccessible< T > rra =
+				Views.interpolate( Views.extendBorder( input ),
+						new NLinearInterpolatorFactory<>() );
+
+		Scale scale = new Scale( scalingFactors );
+		RealRandomAccessible< T > rescaledRRA  = RealViews.transform( rra, scale );
+
+		final RandomAccessibleInterval< T > finiteRastered =
+				Views.interval( Views.raster( rescaledRRA ), createTransformedInterval( input, scale ) );
+
+		final RandomAccessibleInterval< T > output =
+				createEmptyCellImg( finiteRastered, input.randomAccess().get() );
+
+		Resampler.materialize( finiteRastered, output, Runtime.getRuntime().availableProcessors() );
+
+		return output;
+	}
+
+	/**
+	 * Anti-aliased downsampling by integer factors, combining each block of input voxels
+	 * by averaging (or max / min / mode, e.g. for label images).
+	 */
+	public static < T extends RealType< T > & NativeType< T > >
+	RandomAccessibleInterval< T > createBinnedImg(
+			RandomAccessibleInterval< T > input,
+			long[] binning,
+			Binning.Mode mode )
+	{
+		assert binning.length == input.numDimensions();
+
+		return Binning.bin( input, binning, mode, Runtime.getRuntime().availableProcessors() );
+	}
+
+	/**
+	 * Multi-resolution pyramid, where level 0 is the input and each level k + 1 is derived from level k
+	 * by averaging blocks of the given factors (which is anti-aliasing by a box filter).
+	 * The levels are computed lazily, cell by cell, keeping at most cacheSizeInBytes of each level in memory.
+	 * As every level is only computed from the one above it, the total cost is about 1 + 1/8 + 1/64 + ...
+	 * of the cost of computing the first level, e.g. for factors of 2 in 3D.
+	 */
+	public static < T extends RealType< T > & NativeType< T > >
+	ArrayList< RandomAccessibleInterval< T > > createPyramid(
+			RandomAccessibleInterval< T > input,
+			long[] factors,
+			int numLevels,
+			long cacheSizeInBytes )
+	{
+		final ArrayList< RandomAccessibleInterval< T > > levels = new ArrayList<>();
+		levels.add( input );
+
+		for ( int level = 1; level < numLevels; ++level )
+			levels.add( createDownsampledLevel( levels.get( level - 1 ), factors, cacheSizeInBytes ) );
+
+		return levels;
+	}
+
+	/**
+	 * Lazily averages blocks of the given factors, cell by cell; see {@link #createPyramid}.
+	 *
+	 * @return a zero-min image
+	 */
+	public static < T extends RealType< T > & NativeType< T > >
+	RandomAccessibleInterval< T > createDownsampledLevel(
+			RandomAccessibleInterval< T > level,
+			long[] factors,
+			long cacheSizeInBytes )
+	{
+		final T type = level.randomAccess().get().createVariable();
+
+		final long cellSizeInBytes = ( long ) Math.pow( CELL_SIZE, level.numDimensions() ) * type.getBitsPerPixel() / 8;
+		final long maxNumCells = maxNumCells( cacheSizeInBytes, cellSizeInBytes );
+
+		final ReadOnlyCachedCellImgOptions options = ReadOnlyCachedCellImgOptions.options()
+				.cellDimensions( CELL_SIZE )
+				.cacheType( CacheType.BOUNDED )
+				.maxCacheSize( maxNumCells );
+
+		final CellLoader< T > loader = cell -> Binning.bin( level, factors, Binning.Mode.AVERAGE, cell );
+
+		return new ReadOnlyCachedCellImgFactory( options ).create(
+				Intervals.dimensionsAsLongArray( Binning.binnedInterval( level, factors ) ),
+				type,
+				loader );
+	}
+
+	public static long defaultCacheSizeInBytes()
+	{
+		return Runtime.getRuntime().maxMemory() / 4;
+	}
+
+	/**
+	 * Fused version of {@link #createOptimallyBlurredArrayImg} and {@link #createResampledArrayImg}.
+	 * Memory and runtime scale with the output size instead of the input size.
+	 *
+	 * @return the downsampled image, or null if an intermediate buffer would be too large
+	 */
+	public static < T extends RealType< T > & NativeType< T > >
+	RandomAccessibleInterval< T > createBlurredAndResampledImg(
+			RandomAccessibleInterval< T > input,
+			double[] scalingFactors )
+	{
+		final Scale scale = new Scale( scalingFactors );
+		final FinalInterval outputInterval = createTransformedInterval( input, scale );
+
+		final SeparableResampler.AxisKernel[] kernels =
+				new SeparableResampler.AxisKernel[ input.numDimensions() ];
+
+		for ( int d = 0; d < input.numDimensions(); ++d )
+			kernels[ d ] = SeparableResampler.gaussianKernel(
+					input.min( d ),
+					input.max( d ),
+					outputInterval.min( d ),
+					outputInterval.max( d ),
+					scalingFactors[ d ],
+					0.5 / scalingFactors[ d ] );
+
+		return SeparableResampler.resample( input, kernels, Runtime.getRuntime().availableProcessors() );
+	}
+
+	public static < T extends RealType< T > & NativeType< T > >
+	RandomAccessibleInterval< T > createSeparablyResampledImg(
+			RandomAccessibleInterval< T > input,
+			double[] scalingFactors )
+	{
+		final Scale scale = new Scale( scalingFactors );
+		final FinalInterval outputInterval = createTransformedInterval( input, scale );
+
+		final SeparableResampler.AxisKernel[] kernels =
+				new SeparableResampler.AxisKernel[ input.numDimensions() ];
+
+		for ( int d = 0; d < input.numDimensions(); ++d )
+			kernels[ d ] = SeparableResampler.linearKernel(
+					input.min( d ),
+					input.max( d ),
+					outputInterval.min( d ),
+					outputInterval.max( d ),
+					scalingFactors[ d ] );
+
+		return SeparableResampler.resample( input, kernels, Runtime.getRuntime().availableProcessors() );
+	}
+
 	private static < T extends RealType< T > & NativeType< T > >
 	RandomAccessibleInterval< T > createOptimallyBlurredArrayImg(
 			RandomAccessibleInterval< T > input,
@@ -129,44 +324,170 @@ public abstract class Scalings
 		 * - Optimal blurring is 0.5 / M, where M is the downsampling factor
 		 */
 
-		final double[] sigmas = new double[input.numDimensions() ];
-
-		for ( int d = 0; d < input.numDimensions(); ++d )
-			sigmas[ d ] = 0.5 / scalingFactors[ d ];
+		final double[] sigmas = optimalSigmas( scalingFactors );
 
 		// allocate output image
 		RandomAccessibleInterval< T > output = createEmptyArrayImg( input );
 
 		// blur input image and write into output image
-		Gauss3.gauss( sigmas, Views.extendBorder( input ), output ) ;
+		blur( sigmas, Views.extendBorder( input ), output, Runtime.getRuntime().availableProcessors() );
 
 		return output;
 	}
 
+	/**
+	 * The blurred image is a cached cell image, whose cells are only computed
+	 * (from the border-extended input, i.e. including the necessary halo) when they are accessed.
+	 * At most cacheSizeInBytes of blurred cells are kept in memory.
+	 */
 	private static < T extends RealType< T > & NativeType< T > >
 	RandomAccessibleInterval< T > createOptimallyBlurredCellImg(
 			RandomAccessibleInterval< T > input,
-			double[] scalingFactors )
+			double[] scalingFactors,
+			long cacheSizeInBytes )
 	{
 		/**
 		 * - https://en.wikipedia.org/wiki/Decimation_(signal_processing)
 		 * - Optimal blurring is 0.5 / M, where M is the downsampling factor
 		 */
 
-		final double[] sigmas = new double[input.numDimensions() ];
+		final double[] sigmas = optimalSigmas( scalingFactors );
 
-		for ( int d = 0; d < input.numDimensions(); ++d )
+		final T type = input.randomAccess().get().createVariable();
+
+		final int numThreads = Runtime.getRuntime().availableProcessors();
+		final int[] cellDimensions = blurCellDimensions( input, sigmas, type, cacheSizeInBytes / numThreads );
+		final long cellSizeInBytes = Intervals.numElements( cellDimensions ) * type.getBitsPerPixel() / 8;
+		final long maxNumCells = maxNumCells( cacheSizeInBytes, cellSizeInBytes );
+
+		final ReadOnlyCachedCellImgOptions options = ReadOnlyCachedCellImgOptions.options()
+				.cellDimensions( cellDimensions )
+				.cacheType( CacheType.BOUNDED )
+				.maxCacheSize( maxNumCells );
+
+		// cells are computed in parallel by the threads that access them
+		final RandomAccessible< T > source = Views.extendBorder( Views.zeroMin( input ) );
+		final CellLoader< T > loader = cell -> blur( sigmas, source, cell, 1 );
+
+		final RandomAccessibleInterval< T > output = new ReadOnlyCachedCellImgFactory( options ).create(
+				Intervals.dimensionsAsLongArray( input ),
+				type,
+				loader );
+
+		return Transforms.getWithAdjustedOrigin( input, output );
+	}
+
+	/**
+	 * Optimal blurring is 0.5 / M, where M is the downsampling factor.
+	 */
+	private static double[] optimalSigmas( double[] scalingFactors )
+	{
+		final double[] sigmas = new double[ scalingFactors.length ];
+
+		for ( int d = 0; d < scalingFactors.length; ++d )
 			sigmas[ d ] = 0.5 / scalingFactors[ d ];
 
-		// allocate output image
-		RandomAccessibleInterval< T > output = createEmptyCellImg( input );
+		return sigmas;
+	}
 
-		// blur input image and write into output image
-		Gauss3.gauss( sigmas, Views.extendBorder( input ), output ) ;
+	private static boolean usesRecursiveGaussian( double[] sigmas )
+	{
+		return Arrays.stream( sigmas ).max().orElse( 0 ) >= RecursiveGaussian.SIGMA_THRESHOLD;
+	}
 
-		return output;
+	/**
+	 * Every cell reads a halo of about 4 sigma on each side, so cells of a fixed size would
+	 * read more and more halo per computed voxel as sigma grows. Along each axis the cell is therefore
+	 * at least {@link #HALO_CELL_RATIO} times as long as the halo (but not longer than the image),
+	 * which keeps the halo overhead below 2 / {@link #HALO_CELL_RATIO} per axis, independent of sigma.
+	 *
+	 * Such cells grow with sigma cubed, though. As every loading thread holds one cell and its float blur buffer,
+	 * the longest edge is halved until both fit into maxBytesPerCell, accepting more halo reads.
+	 *
+	 * @throws IllegalArgumentException if not even a single voxel and its halo fit
+	 */
+	private static int[] blurCellDimensions(
+			RandomAccessibleInterval< ? > input,
+			double[] sigmas,
+			RealType< ? > type,
+			long maxBytesPerCell )
+	{
+		final int n = input.numDimensions();
+		final int[] cellDimensions = new int[ n ];
+		final long[] halos = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			halos[ d ] = RecursiveGaussian.halo( sigmas[ d ] );
+			final long length = Math.max( CELL_SIZE, HALO_CELL_RATIO * halos[ d ] );
+			cellDimensions[ d ] = ( int ) Math.min( length, Math.max( CELL_SIZE, input.dimension( d ) ) );
+		}
+
+		while ( blurCellSizeInBytes( cellDimensions, halos, type ) > maxBytesPerCell )
+		{
+			int longest = 0;
+			for ( int d = 1; d < n; ++d )
+				if ( cellDimensions[ d ] > cellDimensions[ longest ] ) longest = d;
+
+			if ( cellDimensions[ longest ] == 1 )
+				throw new IllegalArgumentException( "The blur halo of a single voxel needs "
+						+ blurCellSizeInBytes( cellDimensions, halos, type ) + " bytes, more than the "
+						+ maxBytesPerCell + " bytes of cache per thread." );
+
+			cellDimensions[ longest ] = ( cellDimensions[ longest ] + 1 ) / 2;
+		}
+
+		return cellDimensions;
 	}
 
+	/**
+	 * @return the size of a cell plus that of the float buffer with its halo, which the blur of the cell needs
+	 */
+	private static long blurCellSizeInBytes( int[] cellDimensions, long[] halos, RealType< ? > type )
+	{
+		long cellSize = 1;
+		long bufferSize = 1;
+		for ( int d = 0; d < cellDimensions.length; ++d )
+		{
+			cellSize *= cellDimensions[ d ];
+			bufferSize *= cellDimensions[ d ] + 2 * halos[ d ];
+		}
+
+		return cellSize * type.getBitsPerPixel() / 8 + bufferSize * Float.BYTES;
+	}
 
+	/**
+	 * @throws IllegalArgumentException if not even one cell fits into the cache
+	 */
+	private static long maxNumCells( long cacheSizeInBytes, long cellSizeInBytes )
+	{
+		final long maxNumCells = cacheSizeInBytes / cellSizeInBytes;
 
+		if ( maxNumCells < 1 )
+			throw new IllegalArgumentException( "A cell of " + cellSizeInBytes
+					+ " bytes does not fit into the cache of " + cacheSizeInBytes + " bytes." );
+
+		return maxNumCells;
+	}
+
+	/**
+	 * Blurs with a {@link RecursiveGaussian} if any sigma is at least
+	 * {@link RecursiveGaussian#SIGMA_THRESHOLD}, such that the cost per voxel
+	 * does not grow with the downsampling factor, and with {@link Gauss3} otherwise.
+	 * Only used where the fused {@link #createBlurredAndResampledImg} cannot run,
+	 * i.e. for the lazily blurred cells and for too large array images.
+	 */
+	private static < T extends RealType< T > & NativeType< T > >
+	void blur(
+			double[] sigmas,
+			RandomAccessible< T > source,
+			RandomAccessibleInterval< T > output,
+			int numThreads )
+	{
+		if ( usesRecursiveGaussian( sigmas )
+				&& RecursiveGaussian.fitsIntoBuffer( output, sigmas ) )
+			RecursiveGaussian.gauss( sigmas, source, output, numThreads );
+		else
+			Gauss3.gauss( sigmas, source, output ) ;
+	}
 }
@@ -0,0 +1,360 @@
+package de.embl.cba.transforms.utils;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.IntStream;
+
+/**
+ * Resampling with axis-aligned kernels, e.g. for scalings.
+ *
+ * For each axis, the source indices and weights contributing to each target index
+ * are precomputed in an {@link AxisKernel}. The image is then resampled by one 1D pass
+ * per axis, working on line buffers. Source indices are clamped to the source interval,
+ * which corresponds to {@code Views.extendBorder}.
+ */
+public abstract class SeparableResampler
+{
+	public static class AxisKernel
+	{
+		final long targetMin;
+		final int targetSize;
+		final int numTaps;
+
+		// source indices, relative to the source min, and weights; numTaps entries per target index
+		final int[] indices;
+		final double[] weights;
+
+		public AxisKernel( long targetMin, int targetSize, int numTaps )
+		{
+			this.targetMin = targetMin;
+			this.targetSize = targetSize;
+			this.numTaps = numTaps;
+			this.indices = new int[ targetSize * numTaps ];
+			this.weights = new double[ targetSize * numTaps ];
+		}
+	}
+
+	/**
+	 * Linear interpolation at the source positions t / scale, for target indices t.
+	 */
+	public static AxisKernel linearKernel(
+			long sourceMin,
+			long sourceMax,
+			long targetMin,
+			long targetMax,
+			double scale )
+	{
+		final AxisKernel kernel = new AxisKernel( targetMin, ( int ) ( targetMax - targetMin + 1 ), 2 );
+
+		for ( int t = 0; t < kernel.targetSize; ++t )
+		{
+			final double position = ( targetMin + t ) / scale;
+			final long floor = ( long ) Math.floor( position );
+			final double fraction = position - floor;
+
+			kernel.indices[ 2 * t ] = clamp( floor, sourceMin, sourceMax );
+			kernel.indices[ 2 * t + 1 ] = clamp( floor + 1, sourceMin, sourceMax );
+			kernel.weights[ 2 * t ] = 1.0 - fraction;
+			kernel.weights[ 2 * t + 1 ] = fraction;
+		}
+
+		return kernel;
+	}
+
+	/**
+	 * Gaussian blur with the given sigma followed by linear interpolation at the
+	 * source positions t / scale, evaluated only at the target indices t.
+	 *
+	 * The weights are identical to blurring the whole border-extended source with
+	 * {@link Gauss3} and interpolating linearly in the blurred image.
+	 */
+	public static AxisKernel gaussianKernel(
+			long sourceMin,
+			long sourceMax,
+			long targetMin,
+			long targetMax,
+			double scale,
+			double sigma )
+	{
+		final double[] halfKernel = Gauss3.halfkernels( new double[]{ sigma } )[ 0 ];
+		final int radius = halfKernel.length - 1;
+		final int numTaps = 2 * radius + 2;
+
+		final AxisKernel kernel = new AxisKernel( targetMin, ( int ) ( targetMax - targetMin + 1 ), numTaps );
+
+		for ( int t = 0; t < kernel.targetSize; ++t )
+		{
+			final double position = ( targetMin + t ) / scale;
+			final long floor = ( long ) Math.floor( position );
+			final double fraction = position - floor;
+
+			for ( int tap = 0; tap < numTaps; ++tap )
+			{
+				// offset relative to floor, from -radius to radius + 1
+				final int offset = tap - radius;
+
+				final int k = t * numTaps + tap;
+				kernel.indices[ k ] = clamp( floor + offset, sourceMin, sourceMax );
+				kernel.weights[ k ] =
+						( 1.0 - fraction ) * halfKernelValue( halfKernel, offset )
+						+ fraction * halfKernelValue( halfKernel, offset - 1 );
+			}
+		}
+
+		return kernel;
+	}
+
+	private static double halfKernelValue( double[] halfKernel, int offset )
+	{
+		final int distance = Math.abs( offset );
+		return distance < halfKernel.length ? halfKernel[ distance ] : 0.0;
+	}
+
+	static int clamp( long index, long min, long max )
+	{
+		return ( int ) ( Math.max( min, Math.min( max, index ) ) - min );
+	}
+
+	/**
+	 * @return the resampled image, or null if an intermediate buffer would be too large
+	 */
+	public static < T extends RealType< T > & NativeType< T > >
+	RandomAccessibleInterval< T > resample(
+			RandomAccessibleInterval< T > input,
+			AxisKernel[] kernels,
+			int numThreads )
+	{
+		final int n = input.numDimensions();
+
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = kernels[ d ].targetMin;
+			max[ d ] = kernels[ d ].targetMin + kernels[ d ].targetSize - 1;
+		}
+
+		// reduce the strongest first, such that the intermediate buffers stay small
+		final Integer[] axes = IntStream.range( 0, n ).boxed().toArray( Integer[]::new );
+		Arrays.sort( axes, Comparator.comparingDouble( d -> ( double ) kernels[ d ].targetSize / input.dimension( d ) ) );
+
+		final long[] dimensions = new long[ n ];
+		input.dimensions( dimensions );
+		for ( int i = 0; i < n - 1; ++i )
+		{
+			dimensions[ axes[ i ] ] = kernels[ axes[ i ] ].targetSize;
+			if ( numElements( dimensions ) >= Integer.MAX_VALUE ) return null;
+		}
+
+		final RandomAccessibleInterval< T > output =
+				ImageCreators.createEmptyImg( new FinalInterval( min, max ), input.randomAccess().get() );
+
+		input.dimensions( dimensions );
+		double[] buffer = null;
+
+		for ( int i = 0; i < n; ++i )
+		{
+			final int axis = axes[ i ];
+			final long[] targetDimensions = dimensions.clone();
+			targetDimensions[ axis ] = kernels[ axis ].targetSize;
+
+			final double[] targetBuffer = i < n - 1 ? new double[ ( int ) numElements( targetDimensions ) ] : null;
+
+			final Pass< T > pass = new Pass<>(
+					axis,
+					kernels[ axis ],
+					dimensions,
+					targetDimensions,
+					i == 0 ? input : null, buffer,
+					i == n - 1 ? output : null, targetBuffer );
+
+			final long[] lineMax = new long[ n ];
+			for ( int d = 0; d < n; ++d )
+				lineMax[ d ] = d == axis ? 0 : targetDimensions[ d ] - 1;
+
+			final int[] blockSize = Resampler.defaultBlockSize( n );
+			blockSize[ axis ] = 1;
+
+			Resampler.forEachBlock(
+					new FinalInterval( new long[ n ], lineMax ),
+					blockSize,
+					numThreads,
+					pass::worker );
+
+			buffer = targetBuffer;
+			System.arraycopy( targetDimensions, 0, dimensions, 0, n );
+		}
+
+		return output;
+	}
+
+	static long numElements( long[] dimensions )
+	{
+		long numElements = 1;
+		for ( long dimension : dimensions )
+			numElements *= dimension;
+		return numElements;
+	}
+
+	static long[] strides( long[] dimensions )
+	{
+		final long[] strides = new long[ dimensions.length ];
+		long stride = 1;
+		for ( int d = 0; d < dimensions.length; ++d )
+		{
+			strides[ d ] = stride;
+			stride *= dimensions[ d ];
+		}
+		return strides;
+	}
+
+	/**
+	 * One 1D pass along an axis. Lines are read either from the input image or from
+	 * the buffer of the previous pass, and written either to a buffer or to the output image.
+	 */
+	private static class Pass< T extends RealType< T > >
+	{
+		private final int axis;
+		private final AxisKernel kernel;
+		private final long[] sourceDimensions;
+		private final long[] sourceStrides;
+		private final long[] targetStrides;
+		private final RandomAccessibleInterval< T > sourceImage;
+		private final double[] sourceBuffer;
+		private final RandomAccessibleInterval< T > targetImage;
+		private final double[] targetBuffer;
+
+		Pass( int axis,
+			  AxisKernel kernel,
+			  long[] sourceDimensions,
+			  long[] targetDimensions,
+			  RandomAccessibleInterval< T > sourceImage,
+			  double[] sourceBuffer,
+			  RandomAccessibleInterval< T > targetImage,
+			  double[] targetBuffer )
+		{
+			this.axis = axis;
+			this.kernel = kernel;
+			this.sourceDimensions = sourceDimensions.clone();
+			this.sourceStrides = strides( sourceDimensions );
+			this.targetStrides = strides( targetDimensions );
+			this.sourceImage = sourceImage;
+			this.sourceBuffer = sourceBuffer;
+			this.targetImage = targetImage;
+			this.targetBuffer = targetBuffer;
+		}
+
+		Resampler.BlockWorker worker()
+		{
+			final double[] sourceLine = new double[ ( int ) sourceDimensions[ axis ] ];
+			final double[] targetLine = new double[ kernel.targetSize ];
+			final RandomAccess< T > in = sourceImage != null ? sourceImage.randomAccess() : null;
+			final RandomAccess< T > out = targetImage != null ? targetImage.randomAccess() : null;
+			final long[] position = new long[ sourceDimensions.length ];
+
+			return block -> {
+				block.min( position );
+				do
+				{
+					readLine( position, in, sourceLine );
+					filter( sourceLine, targetLine );
+					writeLine( position, out, targetLine );
+				}
+				while ( nextLine( position, block ) );
+			};
+		}
+
+		private boolean nextLine( long[] position, Interval block )
+		{
+			for ( int d = 0; d < position.length; ++d )
+			{
+				if ( d == axis ) continue;
+
+				if ( position[ d ] < block.max( d ) )
+				{
+					position[ d ]++;
+					return true;
+				}
+
+				position[ d ] = block.min( d );
+			}
+
+			return false;
+		}
+
+		private void readLine( long[] position, RandomAccess< T > in, double[] line )
+		{
+			if ( in != null )
+			{
+				for ( int d = 0; d < position.length; ++d )
+					in.setPosition( sourceImage.min( d ) + position[ d ], d );
+
+				for ( int i = 0; i < line.length; ++i )
+				{
+					line[ i ] = in.get().getRealDouble();
+					in.fwd( axis );
+				}
+			}
+			else
+			{
+				final long stride = sourceStrides[ axis ];
+				int index = ( int ) offset( position, sourceStrides );
+				for ( int i = 0; i < line.length; ++i, index += stride )
+					line[ i ] = sourceBuffer[ index ];
+			}
+		}
+
+		private void writeLine( long[] position, RandomAccess< T > out, double[] line )
+		{
+			if ( out != null )
+			{
+				for ( int d = 0; d < position.length; ++d )
+					out.setPosition( targetImage.min( d ) + position[ d ], d );
+
+				for ( int i = 0; i < line.length; ++i )
+				{
+					out.get().setReal( line[ i ] );
+					out.fwd( axis );
+				}
+			}
+			else
+			{
+				final long stride = targetStrides[ axis ];
+				int index = ( int ) offset( position, targetStrides );
+				for ( int i = 0; i < line.length; ++i, index += stride )
+					targetBuffer[ index ] = line[ i ];
+			}
+		}
+
+		private void filter( double[] source, double[] target )
+		{
+			final int numTaps = kernel.numTaps;
+			final int[] indices = kernel.indices;
+			final double[] weights = kernel.weights;
+
+			for ( int t = 0, k = 0; t < target.length; ++t )
+			{
+				double sum = 0;
+				for ( int tap = 0; tap < numTaps; ++tap, ++k )
+					sum += weights[ k ] * source[ indices[ k ] ];
+				target[ t ] = sum;
+			}
+		}
+
+		private static long offset( long[] position, long[] strides )
+		{
+			long offset = 0;
+			for ( int d = 0; d < position.length; ++d )
+				offset += position[ d ] * strides[ d ];
+			return offset;
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package de.embl.cba.transforms.utils;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JDK Flight Recorder event for one stage of a run, see {@link PerformanceMetrics}.
+ *
+ * Compiling it needs the jdk.jfr module, i.e. JDK 11 or later (or 8u262 or later);
+ * at runtime, JVMs without it fall back to the summary.
+ */
+@Name( "de.embl.cba.transforms.utils.Stage" )
+@Label( "Stage" )
+@Category( "Transforms Utilities" )
+@Description( "Load, transform or save stage" )
+class StageEvent extends Event
+{
+	@Label( "Stage" )
+	String stage;
+
+	@Label( "Voxels" )
+	long voxels;
+
+	@Label( "Bytes Read" )
+	@DataAmount
+	long bytesRead;
+
+	@Label( "Bytes Written" )
+	@DataAmount
+	long bytesWritten;
+
+	@Label( "Process CPU Time" )
+	@Timespan
+	long cpuTime;
+}
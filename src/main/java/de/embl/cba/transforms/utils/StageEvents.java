@@ -0,0 +1,29 @@
+package de.embl.cba.transforms.utils;
+
+/**
+ * The only class that refers to {@link StageEvent}, such that JVMs without
+ * Flight Recorder fail to load this class instead of {@link PerformanceMetrics}.
+ */
+class StageEvents
+{
+	static Object begin( String stage )
+	{
+		final StageEvent event = new StageEvent();
+		event.stage = stage;
+		event.begin();
+		return event;
+	}
+
+	static void commit( Object stageEvent, long voxels, long bytesRead, long bytesWritten, long cpuTime )
+	{
+		final StageEvent event = ( StageEvent ) stageEvent;
+		event.end();
+		if ( ! event.shouldCommit() ) return;
+
+		event.voxels = voxels;
+		event.bytesRead = bytesRead;
+		event.bytesWritten = bytesWritten;
+		event.cpuTime = cpuTime;
+		event.commit();
+	}
+}
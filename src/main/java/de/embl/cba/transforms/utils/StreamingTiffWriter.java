@@ -0,0 +1,536 @@
+package de.embl.cba.transforms.utils;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a 2D or 3D image as a BigTIFF file with one directory per z-plane,
+ * without materializing the whole image.
+ *
+ * The planes, which may be lazily computed views, are rendered (and optionally compressed)
+ * in parallel and appended to the file in order. At most {@link #MAX_PENDING_PLANES_PER_THREAD}
+ * planes per thread are held in memory, such that computing and writing overlap
+ * while memory stays bounded. Images that a block-wise resampler computes faster than voxel-wise views
+ * are instead rendered slab by slab into reused buffers by a {@link SlabRenderer}.
+ * The directories are written after the pixel data.
+ *
+ * Only {@link UnsignedByteType}, {@link UnsignedShortType} and {@link FloatType} images are written;
+ * other types must be converted first. The first directory carries an ImageJ description
+ * (number of slices and, if given, unit and z-spacing) and the x/y resolution,
+ * such that ImageJ opens the file as a calibrated stack.
+ */
+public abstract class StreamingTiffWriter
+{
+	public static final int MAX_PENDING_PLANES_PER_THREAD = 2;
+
+	/**
+	 * Target size of one compressed strip; uncompressed planes are written as a single strip.
+	 */
+	public static final int STRIP_SIZE_IN_BYTES = 64 * 1024;
+
+	private static final int COMPRESSION_NONE = 1;
+	private static final int COMPRESSION_DEFLATE = 8;
+
+	private static final int SAMPLE_FORMAT_UNSIGNED = 1;
+	private static final int SAMPLE_FORMAT_FLOAT = 3;
+
+	private static final int TYPE_ASCII = 2;
+	private static final int TYPE_SHORT = 3;
+	private static final int TYPE_LONG = 4;
+	private static final int TYPE_RATIONAL = 5;
+	private static final int TYPE_LONG8 = 16;
+
+	private static final int RESOLUTION_UNIT_NONE = 1;
+
+	private static final int HEADER_SIZE = 16;
+	private static final int NUM_ENTRIES = 11;
+	private static final int ENTRY_SIZE = 20;
+
+	/**
+	 * Writes the image without calibration.
+	 */
+	public static < T extends RealType< T > >
+	void write( RandomAccessibleInterval< T > image, String path, boolean compress, int numThreads ) throws IOException
+	{
+		write( image, path, compress, numThreads, null, null );
+	}
+
+	/**
+	 * @param voxelSize
+	 * 			size of a voxel along x, y (and z), written as ImageJ calibration, or null for none
+	 * @param unit
+	 * 			unit of the voxel size, e.g. "micron"
+	 * @throws IllegalArgumentException if the type is not 8 or 16 bit unsigned integer or 32 bit float
+	 */
+	public static < T extends RealType< T > >
+	void write(
+			RandomAccessibleInterval< T > image,
+			String path,
+			boolean compress,
+			int numThreads,
+			double[] voxelSize,
+			String unit ) throws IOException
+	{
+		final Layout layout = new Layout( image, Util.getTypeFromInterval( image ), compress );
+
+		final ExecutorService executorService = Executors.newFixedThreadPool( numThreads );
+		final ArrayDeque< Future< byte[][] > > pending = new ArrayDeque<>();
+		final int maxPending = numThreads * MAX_PENDING_PLANES_PER_THREAD;
+
+		try ( PlaneAppender appender = new PlaneAppender( path, layout ) )
+		{
+			for ( int z = 0; z < layout.numPlanes || ! pending.isEmpty(); )
+			{
+				if ( z < layout.numPlanes && pending.size() < maxPending )
+				{
+					final int plane = z++;
+					pending.add( executorService.submit( () -> encodePlane( image, plane, layout ) ) );
+					continue;
+				}
+
+				appender.append( pending.poll().get() );
+			}
+
+			appender.finish( voxelSize, unit );
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			throw new IOException( "Could not write " + path, e );
+		}
+		finally
+		{
+			executorService.shutdownNow();
+		}
+	}
+
+	/**
+	 * Computes the planes of one slab of an image, e.g. with {@link Resampler#resample}.
+	 */
+	public interface SlabRenderer< T >
+	{
+		/**
+		 * @param slab
+		 * 			buffer with the x, y and z-range of the planes to compute; all its voxels must be set
+		 */
+		void render( RandomAccessibleInterval< T > slab );
+	}
+
+	/**
+	 * Writes a 3D image that is computed slab by slab, e.g. by a block-wise resampler using all threads,
+	 * instead of voxel by voxel from a lazy view. Two slab buffers of {@link Resampler#DEFAULT_BLOCK_SIZE_Z}
+	 * planes are reused: while one is computed, the previous one is encoded and written.
+	 *
+	 * @param interval
+	 * 			interval of the image; the slabs are sub-intervals of it
+	 * @see #write(RandomAccessibleInterval, String, boolean, int, double[], String)
+	 */
+	public static < T extends RealType< T > & NativeType< T > >
+	void write(
+			SlabRenderer< T > renderer,
+			Interval interval,
+			T type,
+			String path,
+			boolean compress,
+			int numThreads,
+			double[] voxelSize,
+			String unit ) throws IOException
+	{
+		final Layout layout = new Layout( interval, type, compress );
+
+		final long planeSize = ( long ) layout.width * layout.height;
+		final int slabDepth = ( int ) Math.max( 1, Math.min(
+				Math.min( Resampler.DEFAULT_BLOCK_SIZE_Z, layout.numPlanes ),
+				( Integer.MAX_VALUE - 1 ) / planeSize ) );
+
+		final ArrayList< Img< T > > buffers = new ArrayList<>();
+		for ( int b = 0; b < 2; ++b )
+			buffers.add( new ArrayImgFactory<>( type ).create( layout.width, layout.height, slabDepth ) );
+
+		final ExecutorService encodingService = Executors.newFixedThreadPool( numThreads );
+		final ExecutorService writingService = Executors.newSingleThreadExecutor();
+
+		try ( PlaneAppender appender = new PlaneAppender( path, layout ) )
+		{
+			Future< ? > previousWriting = null;
+
+			for ( int zMin = 0, s = 0; zMin < layout.numPlanes; zMin += slabDepth, ++s )
+			{
+				final int depth = Math.min( slabDepth, layout.numPlanes - zMin );
+				final RandomAccessibleInterval< T > slab = Views.translate(
+						Views.interval( buffers.get( s % 2 ), new FinalInterval( layout.width, layout.height, depth ) ),
+						interval.min( 0 ), interval.min( 1 ), interval.min( 2 ) + zMin );
+
+				// the other buffer is still being written
+				renderer.render( slab );
+
+				if ( previousWriting != null ) previousWriting.get();
+
+				previousWriting = writingService.submit( () -> {
+					final ArrayList< Future< byte[][] > > planes = new ArrayList<>();
+					for ( int z = 0; z < depth; ++z )
+					{
+						final int plane = z;
+						planes.add( encodingService.submit( () -> encodePlane( slab, plane, layout ) ) );
+					}
+
+					for ( Future< byte[][] > plane : planes )
+						appender.append( plane.get() );
+
+					return null;
+				} );
+			}
+
+			if ( previousWriting != null ) previousWriting.get();
+
+			appender.finish( voxelSize, unit );
+		}
+		catch ( InterruptedException | ExecutionException e )
+		{
+			throw new IOException( "Could not write " + path, e );
+		}
+		finally
+		{
+			encodingService.shutdownNow();
+			writingService.shutdownNow();
+		}
+	}
+
+	/**
+	 * Sample format and strip layout of the planes.
+	 */
+	private static class Layout
+	{
+		final int bytesPerSample;
+		final int sampleFormat;
+		final int width;
+		final int height;
+		final int numPlanes;
+		final int rowsPerStrip;
+		final boolean compress;
+
+		Layout( Interval interval, RealType< ? > type, boolean compress )
+		{
+			this.bytesPerSample = bytesPerSample( type );
+			this.sampleFormat = type instanceof FloatType ? SAMPLE_FORMAT_FLOAT : SAMPLE_FORMAT_UNSIGNED;
+			this.width = ( int ) interval.dimension( 0 );
+			this.height = ( int ) interval.dimension( 1 );
+			this.numPlanes = interval.numDimensions() > 2 ? ( int ) interval.dimension( 2 ) : 1;
+			this.rowsPerStrip = compress
+					? Math.max( 1, Math.min( height, STRIP_SIZE_IN_BYTES / ( width * bytesPerSample ) ) )
+					: height;
+			this.compress = compress;
+		}
+	}
+
+	/**
+	 * Appends the encoded planes, in order, after the header and finally writes the header and the directories.
+	 */
+	private static class PlaneAppender implements AutoCloseable
+	{
+		private final FileChannel channel;
+		private final Layout layout;
+		private final long[][] stripOffsets;
+		private final long[][] stripByteCounts;
+		private long position = HEADER_SIZE;
+		private int numPlanes = 0;
+
+		PlaneAppender( String path, Layout layout ) throws IOException
+		{
+			this.channel = FileChannel.open(
+					Paths.get( path ),
+					StandardOpenOption.CREATE,
+					StandardOpenOption.TRUNCATE_EXISTING,
+					StandardOpenOption.WRITE );
+			this.layout = layout;
+			this.stripOffsets = new long[ layout.numPlanes ][];
+			this.stripByteCounts = new long[ layout.numPlanes ][];
+		}
+
+		void append( byte[][] strips ) throws IOException
+		{
+			final int plane = numPlanes++;
+			stripOffsets[ plane ] = new long[ strips.length ];
+			stripByteCounts[ plane ] = new long[ strips.length ];
+			for ( int s = 0; s < strips.length; ++s )
+			{
+				stripOffsets[ plane ][ s ] = position;
+				stripByteCounts[ plane ][ s ] = strips[ s ].length;
+				position += writeFully( channel, ByteBuffer.wrap( strips[ s ] ), position );
+			}
+		}
+
+		void finish( double[] voxelSize, String unit ) throws IOException
+		{
+			final byte[] description = imageJDescription( layout.numPlanes, voxelSize, unit );
+
+			// word-align the directories
+			position += position % 2;
+
+			final ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+			header.put( ( byte ) 'I' ).put( ( byte ) 'I' ).putShort( ( short ) 43 ).putShort( ( short ) 8 ).putShort( ( short ) 0 );
+			header.putLong( position );
+			header.flip();
+			writeFully( channel, header, 0 );
+
+			for ( int plane = 0; plane < layout.numPlanes; ++plane )
+			{
+				final ByteBuffer directory = createDirectory(
+						position,
+						plane == layout.numPlanes - 1,
+						layout.width, layout.height, layout.bytesPerSample, layout.sampleFormat, layout.rowsPerStrip,
+						layout.compress ? COMPRESSION_DEFLATE : COMPRESSION_NONE,
+						stripOffsets[ plane ],
+						stripByteCounts[ plane ],
+						plane == 0 ? description : null,
+						plane == 0 ? voxelSize : null );
+
+				position += writeFully( channel, directory, position );
+			}
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			channel.close();
+		}
+	}
+
+	private static int bytesPerSample( RealType< ? > type )
+	{
+		if ( type instanceof UnsignedByteType ) return 1;
+		if ( type instanceof UnsignedShortType ) return 2;
+		if ( type instanceof FloatType ) return 4;
+
+		throw new IllegalArgumentException( "Only UnsignedByteType, UnsignedShortType and FloatType images can be written, not "
+				+ type.getClass().getSimpleName() + "; convert the image first, e.g. with Converters.convert." );
+	}
+
+	/**
+	 * @return the null-terminated description from which ImageJ reads the stack size and calibration
+	 */
+	private static byte[] imageJDescription( int numPlanes, double[] voxelSize, String unit )
+	{
+		final StringBuilder description = new StringBuilder( "ImageJ=1.53t\n" );
+		description.append( "images=" ).append( numPlanes ).append( "\n" );
+		if ( numPlanes > 1 )
+			description.append( "slices=" ).append( numPlanes ).append( "\n" );
+		if ( voxelSize != null )
+		{
+			description.append( "unit=" ).append( unit ).append( "\n" );
+			if ( numPlanes > 1 && voxelSize.length > 2 )
+				description.append( "spacing=" ).append( voxelSize[ 2 ] ).append( "\n" );
+		}
+		description.append( "loop=false\n" ).append( '\0' );
+
+		return description.toString().getBytes( StandardCharsets.US_ASCII );
+	}
+
+	/**
+	 * @return the rational, with the numerator in the lower and the denominator in the upper 32 bits
+	 */
+	private static long rational( double value )
+	{
+		long denominator = 1_000_000;
+		while ( denominator > 1 && value * denominator > 0xFFFFFFFFL )
+			denominator /= 10;
+
+		final long numerator = Math.min( 0xFFFFFFFFL, Math.round( value * denominator ) );
+		return denominator << 32 | numerator;
+	}
+
+	/**
+	 * @return the little-endian pixel data of the plane, split into strips
+	 */
+	private static < T extends RealType< T > >
+	byte[][] encodePlane(
+			RandomAccessibleInterval< T > image,
+			int plane,
+			Layout layout )
+	{
+		final int width = layout.width;
+		final int height = layout.height;
+		final int bytesPerSample = layout.bytesPerSample;
+		final int rowsPerStrip = layout.rowsPerStrip;
+		final boolean compress = layout.compress;
+		final int numStrips = ( height + rowsPerStrip - 1 ) / rowsPerStrip;
+
+		final RandomAccess< T > access = image.randomAccess();
+		if ( image.numDimensions() > 2 )
+			access.setPosition( image.min( 2 ) + plane, 2 );
+
+		final byte[][] strips = new byte[ numStrips ][];
+		final Deflater deflater = compress ? new Deflater() : null;
+
+		for ( int s = 0; s < numStrips; ++s )
+		{
+			final int numRows = Math.min( rowsPerStrip, height - s * rowsPerStrip );
+			final ByteBuffer buffer =
+					ByteBuffer.allocate( numRows * width * bytesPerSample ).order( ByteOrder.LITTLE_ENDIAN );
+
+			for ( int row = 0; row < numRows; ++row )
+			{
+				access.setPosition( image.min( 0 ), 0 );
+				access.setPosition( image.min( 1 ) + s * rowsPerStrip + row, 1 );
+
+				for ( int x = 0; x < width; ++x )
+				{
+					final T t = access.get();
+					switch ( bytesPerSample )
+					{
+						case 1: buffer.put( ( byte ) ( ( UnsignedByteType ) t ).get() ); break;
+						case 2: buffer.putShort( ( short ) ( ( UnsignedShortType ) t ).get() ); break;
+						default: buffer.putFloat( t.getRealFloat() );
+					}
+					access.fwd( 0 );
+				}
+			}
+
+			strips[ s ] = compress ? deflate( buffer.array(), deflater ) : buffer.array();
+		}
+
+		if ( deflater != null ) deflater.end();
+
+		return strips;
+	}
+
+	private static byte[] deflate( byte[] data, Deflater deflater )
+	{
+		deflater.reset();
+		deflater.setInput( data );
+		deflater.finish();
+
+		byte[] output = new byte[ data.length / 2 + 64 ];
+		int length = 0;
+		while ( ! deflater.finished() )
+		{
+			if ( length == output.length )
+				output = Arrays.copyOf( output, output.length * 2 );
+			length += deflater.deflate( output, length, output.length - length );
+		}
+
+		return Arrays.copyOf( output, length );
+	}
+
+	private static ByteBuffer createDirectory(
+			long offset,
+			boolean isLast,
+			int width,
+			int height,
+			int bytesPerSample,
+			int sampleFormat,
+			int rowsPerStrip,
+			int compression,
+			long[] stripOffsets,
+			long[] stripByteCounts,
+			byte[] description,
+			double[] voxelSize )
+	{
+		final int numStrips = stripOffsets.length;
+		final int numEntries = NUM_ENTRIES + ( description != null ? 1 : 0 ) + ( voxelSize != null ? 3 : 0 );
+		final int directorySize = 8 + numEntries * ENTRY_SIZE + 8;
+
+		// strip arrays and the description, which do not fit into their entries, follow the directory;
+		// the description is padded such that the next directory is word-aligned
+		final int arraySize = numStrips > 1 ? 8 * numStrips : 0;
+		final int descriptionSize = description != null ? description.length + description.length % 2 : 0;
+		final ByteBuffer directory =
+				ByteBuffer.allocate( directorySize + 2 * arraySize + descriptionSize ).order( ByteOrder.LITTLE_ENDIAN );
+
+		final long stripOffsetsOffset = offset + directorySize;
+		final long stripByteCountsOffset = stripOffsetsOffset + arraySize;
+		final long descriptionOffset = stripByteCountsOffset + arraySize;
+
+		// entries are sorted by tag
+		directory.putLong( numEntries );
+		putEntry( directory, 256, TYPE_LONG, 1, width );
+		putEntry( directory, 257, TYPE_LONG, 1, height );
+		putEntry( directory, 258, TYPE_SHORT, 1, 8 * bytesPerSample );
+		putEntry( directory, 259, TYPE_SHORT, 1, compression );
+		putEntry( directory, 262, TYPE_SHORT, 1, 1 ); // black is zero
+		if ( description != null )
+			putEntry( directory, 270, TYPE_ASCII, description.length, descriptionOffset );
+		putEntry( directory, 273, TYPE_LONG8, numStrips, numStrips > 1 ? stripOffsetsOffset : stripOffsets[ 0 ] );
+		putEntry( directory, 277, TYPE_SHORT, 1, 1 );
+		putEntry( directory, 278, TYPE_LONG, 1, rowsPerStrip );
+		putEntry( directory, 279, TYPE_LONG8, numStrips, numStrips > 1 ? stripByteCountsOffset : stripByteCounts[ 0 ] );
+		if ( voxelSize != null )
+		{
+			// pixels per unit
+			putEntry( directory, 282, TYPE_RATIONAL, 1, rational( 1.0 / voxelSize[ 0 ] ) );
+			putEntry( directory, 283, TYPE_RATIONAL, 1, rational( 1.0 / voxelSize[ 1 ] ) );
+		}
+		putEntry( directory, 284, TYPE_SHORT, 1, 1 ); // chunky
+		if ( voxelSize != null )
+			putEntry( directory, 296, TYPE_SHORT, 1, RESOLUTION_UNIT_NONE ); // the unit is in the description
+		putEntry( directory, 339, TYPE_SHORT, 1, sampleFormat );
+		directory.putLong( isLast ? 0 : offset + directory.capacity() );
+
+		if ( numStrips > 1 )
+		{
+			for ( long stripOffset : stripOffsets ) directory.putLong( stripOffset );
+			for ( long stripByteCount : stripByteCounts ) directory.putLong( stripByteCount );
+		}
+
+		if ( description != null )
+		{
+			directory.put( description );
+			while ( directory.hasRemaining() ) directory.put( ( byte ) 0 );
+		}
+
+		directory.flip();
+		return directory;
+	}
+
+	private static void putEntry( ByteBuffer directory, int tag, int type, long count, long value )
+	{
+		directory.putShort( ( short ) tag );
+		directory.putShort( ( short ) type );
+		directory.putLong( count );
+
+		// values are left-justified within the 8 byte field
+		final int start = directory.position();
+		switch ( type )
+		{
+			case TYPE_SHORT: directory.putShort( ( short ) value ); break;
+			case TYPE_LONG: directory.putInt( ( int ) value ); break;
+			default: directory.putLong( value );
+		}
+		while ( directory.position() < start + 8 ) directory.put( ( byte ) 0 );
+	}
+
+	private static long writeFully( FileChannel channel, ByteBuffer buffer, long position ) throws IOException
+	{
+		final long numBytes = buffer.remaining();
+		long written = 0;
+		while ( written < numBytes )
+			written += channel.write( buffer, position + written );
+		return numBytes;
+	}
+}
@@ -14,8 +14,6 @@ import net.imglib2.type.numeric.RealType;
 import net.imglib2.util.LinAlgHelpers;
 import net.imglib2.view.Views;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
 
 public abstract class Transforms
 		< T extends InvertibleRealTransform & Concatenable< T > & PreConcatenable< T > >
@@ -117,56 +115,66 @@ public abstract class Transforms
 			InvertibleRealTransform combinedTransform,
 			InterpolatorFactory interpolatorFactory )
 	{
+		final ExactTransforms.SignedPermutation permutation =
+				ExactTransforms.classify( combinedTransform, ExactTransforms.TOLERANCE );
+
+		// voxels map exactly onto voxels, no interpolation needed
+		if ( permutation != null )
+			return ExactTransforms.createExactView( Views.extendZero( rai ), permutation );
+
 		RealRandomAccessible rra =
 				Views.interpolate( Views.extendZero( rai ), interpolatorFactory );
+
+		// affine views step incrementally through source space instead of applying the full matrix per voxel
+		if ( combinedTransform instanceof AffineGet )
+			return RealViews.affine( rra, ( AffineGet ) combinedTransform );
+
+		// evaluated per voxel; createTransformedImg evaluates a batched inverse,
+		// e.g. of BatchedThinPlateSpline.createInvertible, row by row
 		rra = RealViews.transform( rra, combinedTransform );
 		return Views.raster( rra );
 	}
 
+	/**
+	 * @return all voxels that are at least partially covered by the transformed interval;
+	 * exact for affine transforms and estimated by {@link Bounds#sample} otherwise
+	 */
 	public static FinalInterval createBoundingIntervalAfterTransformation( Interval interval, InvertibleRealTransform transform )
 	{
-		List< long[ ] > corners = Corners.corners( interval );
-
-		long[] boundingMin = new long[ interval.numDimensions() ];
-		long[] boundingMax = new long[ interval.numDimensions() ];
-		Arrays.fill( boundingMin, Long.MAX_VALUE );
-		Arrays.fill( boundingMax, Long.MIN_VALUE );
-
-		for ( long[] corner : corners )
-		{
-			double[] transformedCorner = transformedCorner( transform, corner );
-
-			adjustBoundingRange( boundingMin, boundingMax, transformedCorner );
-		}
-
-		return new FinalInterval( boundingMin, boundingMax );
+		return Bounds.smallestContainingInterval( Bounds.estimate( interval, transform ) );
 	}
 
-	private static void adjustBoundingRange( long[] min, long[] max, double[] transformedCorner )
+	/**
+	 * Inverse-maps the target interval into the source, in order to determine which source voxels
+	 * can contribute to it.
+	 *
+	 * @param margin
+	 * 			support of the interpolator in voxels, e.g. 1 for n-linear interpolation
+	 * @return the source voxels within the footprint, or null if the target does not overlap the source
+	 */
+	public static FinalInterval createSourceFootprint(
+			Interval target,
+			InvertibleRealTransform sourceToTarget,
+			Interval source,
+			long margin )
 	{
-		for ( int d = 0; d < transformedCorner.length; ++d )
-		{
-			if ( transformedCorner[ d ] > max[ d ] )
-			{
-				max[ d ] = (long) transformedCorner[ d ];
-			}
+		final int n = target.numDimensions();
+		final FinalInterval footprint =
+				Bounds.smallestContainingInterval( Bounds.estimate( target, sourceToTarget.inverse() ) );
 
-			if ( transformedCorner[ d ] < min[ d ] )
-			{
-				min[ d ] = (long) transformedCorner[ d ];
-			}
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = Math.max( footprint.min( d ) - margin, source.min( d ) );
+			max[ d ] = Math.min( footprint.max( d ) + margin, source.max( d ) );
+			if ( min[ d ] > max[ d ] ) return null;
 		}
-	}
 
-	private static double[] transformedCorner( InvertibleRealTransform transform, long[] corner )
-	{
-		double[] cornerAsDouble = Arrays.stream( corner ).mapToDouble( x -> x ).toArray();
-		double[] transformedCorner = new double[ corner.length ];
-		transform.apply( cornerAsDouble, transformedCorner );
-		return transformedCorner;
+		return new FinalInterval( min, max );
 	}
 
-
 	public static FinalInterval createScaledInterval( Interval interval, Scale scale )
 	{
 		int n = interval.numDimensions();
@@ -272,6 +280,73 @@ public abstract class Transforms
 		return transformedChannels;
 	}
 
+	/**
+	 * Eager version of {@link #transformAllChannels(RandomAccessibleInterval, AffineTransform3D, FinalInterval)}:
+	 * the channels (along dimension 3) are resampled in one pass with {@link MultiChannelResampler},
+	 * which computes the source coordinate and interpolation weights once for all channels.
+	 * Transforms that map voxels exactly onto voxels are copied without interpolation.
+	 *
+	 * @return the resampled channels, stacked along dimension 3
+	 */
+	public static <T extends RealType<T> & NativeType< T > >
+	RandomAccessibleInterval< T > resampleAllChannels(
+			RandomAccessibleInterval< T > images,
+			AffineTransform3D registrationTransform,
+			FinalInterval outputImageInterval,
+			int numThreads )
+	{
+		return resampleAllChannels( images, registrationTransform, outputImageInterval, false, numThreads );
+	}
+
+	/**
+	 * Eager version of {@link #transformAllChannels(RandomAccessibleInterval, AffineTransform3D)},
+	 * see {@link #resampleAllChannels(RandomAccessibleInterval, AffineTransform3D, FinalInterval, int)}.
+	 */
+	public static <T extends RealType<T> & NativeType< T > >
+	RandomAccessibleInterval< T > resampleAllChannels(
+			RandomAccessibleInterval< T > images,
+			AffineTransform3D registrationTransform,
+			int numThreads )
+	{
+		final FinalInterval outputInterval = createBoundingIntervalAfterTransformation(
+				Views.hyperSlice( images, 3, images.min( 3 ) ),
+				registrationTransform );
+
+		return resampleAllChannels( images, registrationTransform, outputInterval, true, numThreads );
+	}
+
+	private static <T extends RealType<T> & NativeType< T > >
+	RandomAccessibleInterval< T > resampleAllChannels(
+			RandomAccessibleInterval< T > images,
+			AffineTransform3D registrationTransform,
+			FinalInterval outputInterval,
+			boolean clamping,
+			int numThreads )
+	{
+		final ExactTransforms.SignedPermutation permutation =
+				ExactTransforms.classify( registrationTransform, ExactTransforms.TOLERANCE );
+
+		// voxels map exactly onto voxels, no interpolation needed
+		if ( permutation != null )
+		{
+			final ArrayList< RandomAccessibleInterval< T > > channels = new ArrayList<>();
+			for ( long c = images.min( 3 ); c <= images.max( 3 ); ++c )
+				channels.add( Views.interval(
+						ExactTransforms.createExactView( Views.extendZero( Views.hyperSlice( images, 3, c ) ), permutation ),
+						outputInterval ) );
+
+			return Resampler.materialize( Views.stack( channels ), numThreads );
+		}
+
+		return MultiChannelResampler.resample(
+				images,
+				3,
+				registrationTransform,
+				outputInterval,
+				clamping,
+				numThreads );
+	}
+
 
 	public static < T extends NumericType< T > & NativeType< T > >
 	RandomAccessibleInterval createTransformedView( RandomAccessibleInterval< T > rai,
@@ -287,23 +362,11 @@ public abstract class Transforms
 	public static < T extends NumericType< T > >
 	FinalInterval createTransformedInterval( RandomAccessibleInterval< T > rai, InvertibleRealTransform transform )
 	{
-		final FinalInterval transformedInterval;
-
-		if ( transform instanceof AffineTransform3D )
-		{
-			FinalRealInterval transformedRealInterval = ( ( AffineTransform3D ) transform ).estimateBounds( rai );
-			transformedInterval = asIntegerInterval( transformedRealInterval );
-		}
-		else if ( transform instanceof Scale )
-		{
-			transformedInterval = createScaledInterval( rai, ( Scale ) transform );
-		}
-		else
-		{
-			transformedInterval = null;
-		}
+		// the separable resamplers of Scalings expect the truncated scaled interval
+		if ( transform instanceof Scale )
+			return createScaledInterval( rai, ( Scale ) transform );
 
-		return transformedInterval;
+		return createBoundingIntervalAfterTransformation( rai, transform );
 	}
 
 	public static FinalInterval asIntegerInterval( FinalRealInterval realInterval )
@@ -338,6 +401,53 @@ public abstract class Transforms
 		return transformedIntervalView;
 	}
 
+	public static < T extends NumericType< T > & NativeType< T > >
+	RandomAccessibleInterval< T > createTransformedImg( RandomAccessibleInterval< T > rai,
+														InvertibleRealTransform combinedTransform,
+														FinalInterval interval,
+														InterpolatorFactory interpolatorFactory,
+														int numThreads )
+	{
+		return Resampler.resample( rai, combinedTransform, interval, interpolatorFactory, numThreads );
+	}
+
+	/**
+	 * Warps with a transform from target (output) into source space, e.g. a thin-plate spline
+	 * or its {@link DisplacementFieldCache}, which is much faster to evaluate for many landmarks.
+	 */
+	public static < T extends NumericType< T > & NativeType< T > >
+	RandomAccessibleInterval< T > createWarpedImg( RandomAccessibleInterval< T > rai,
+												   RealTransform targetToSource,
+												   FinalInterval interval,
+												   InterpolatorFactory interpolatorFactory,
+												   int numThreads )
+	{
+		return Resampler.resampleTargetToSource( rai, targetToSource, interval, interpolatorFactory, numThreads );
+	}
+
+	/**
+	 * Exact thin-plate spline warp that maps the source landmarks onto the target landmarks,
+	 * evaluated row by row with {@link BatchedThinPlateSpline}.
+	 *
+	 * @param sourceLandmarks
+	 * 			sourceLandmarks[ d ][ k ] is coordinate d of landmark k in the input image
+	 * @param targetLandmarks
+	 * 			the corresponding positions in the output image
+	 */
+	public static < T extends NumericType< T > & NativeType< T > >
+	RandomAccessibleInterval< T > createThinPlateSplineImg( RandomAccessibleInterval< T > rai,
+															double[][] sourceLandmarks,
+															double[][] targetLandmarks,
+															FinalInterval interval,
+															InterpolatorFactory interpolatorFactory,
+															int numThreads )
+	{
+		// the output is sampled from target into source space
+		final BatchedThinPlateSpline targetToSource = new BatchedThinPlateSpline( targetLandmarks, sourceLandmarks );
+
+		return createWarpedImg( rai, targetToSource, interval, interpolatorFactory, numThreads );
+	}
+
 	public static ArrayList< RealPoint > origin()
 	{
 		final ArrayList< RealPoint > origin = new ArrayList<>();
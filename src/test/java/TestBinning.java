@@ -0,0 +1,108 @@
+import de.embl.cba.transforms.utils.Binning;
+import de.embl.cba.transforms.utils.ImageCreators;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Binning must equal a brute-force computation over each block of input voxels,
+ * including the partial blocks at the border and inputs whose min is not zero.
+ * All values are integers, such that the results are exact.
+ */
+public class TestBinning
+{
+	public static void main( String[] args )
+	{
+		final long[] factors = new long[]{ 3, 4, 2 };
+		final int numThreads = Runtime.getRuntime().availableProcessors();
+
+		final RandomAccessibleInterval< UnsignedShortType > image = Views.translate(
+				ImageCreators.createSyntheticVolume( new long[]{ 50, 41, 23 }, new UnsignedShortType(), 42 ),
+				-7, 3, 11 );
+
+		for ( Binning.Mode mode : new Binning.Mode[]{ Binning.Mode.AVERAGE, Binning.Mode.MAX, Binning.Mode.MIN } )
+			check( mode.toString(), image, factors, mode, numThreads );
+
+		// few distinct values, such that the most frequent value is not trivial
+		final RandomAccessibleInterval< UnsignedShortType > labels =
+				Converters.convert( image, ( i, o ) -> o.set( i.get() / 4096 ), new UnsignedShortType() );
+		check( "MODE", labels, factors, Binning.Mode.MODE, numThreads );
+
+		final RandomAccessibleInterval< UnsignedByteType > bytes =
+				ImageCreators.createSyntheticVolume( new long[]{ 33, 20, 9 }, new UnsignedByteType(), 7 );
+		check( "AVERAGE, uint8", bytes, new long[]{ 2, 2, 2 }, Binning.Mode.AVERAGE, numThreads );
+	}
+
+	private static < T extends RealType< T > & NativeType< T > >
+	void check( String name, RandomAccessibleInterval< T > input, long[] factors, Binning.Mode mode, int numThreads )
+	{
+		final RandomAccessibleInterval< T > binned = Binning.bin( input, factors, mode, numThreads );
+
+		final RandomAccessibleInterval< T > reference = ImageCreators.createEmptyArrayImg( binned );
+
+		final int n = input.numDimensions();
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+
+		final Cursor< T > cursor = Views.iterable( reference ).localizingCursor();
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			for ( int d = 0; d < n; ++d )
+			{
+				min[ d ] = input.min( d ) + cursor.getLongPosition( d ) * factors[ d ];
+				max[ d ] = Math.min( input.max( d ), min[ d ] + factors[ d ] - 1 );
+			}
+
+			cursor.get().setReal( reduce( Views.interval( input, new FinalInterval( min, max ) ), mode ) );
+		}
+
+		TestComparisons.check( name, TestComparisons.maxDifference( binned, reference ), 0 );
+	}
+
+	private static < T extends RealType< T > >
+	double reduce( RandomAccessibleInterval< T > block, Binning.Mode mode )
+	{
+		double sum = 0;
+		double max = Double.NEGATIVE_INFINITY;
+		double min = Double.POSITIVE_INFINITY;
+		final Map< Double, Integer > counts = new TreeMap<>();
+
+		for ( T t : Views.flatIterable( block ) )
+		{
+			final double value = t.getRealDouble();
+			sum += value;
+			max = Math.max( max, value );
+			min = Math.min( min, value );
+			counts.merge( value, 1, Integer::sum );
+		}
+
+		switch ( mode )
+		{
+			case MAX: return max;
+			case MIN: return min;
+			case MODE:
+				// the smallest of the most frequent values
+				double mostFrequent = 0;
+				int maxCount = 0;
+				for ( Map.Entry< Double, Integer > entry : counts.entrySet() )
+					if ( entry.getValue() > maxCount )
+					{
+						maxCount = entry.getValue();
+						mostFrequent = entry.getKey();
+					}
+				return mostFrequent;
+			default: return sum / Intervals.numElements( block );
+		}
+	}
+}
@@ -0,0 +1,50 @@
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+
+/**
+ * Checks for the equivalence tests, which are run as main methods, like the other tests.
+ */
+public abstract class TestComparisons
+{
+	/**
+	 * @return the largest absolute difference of the two images within the interval
+	 */
+	public static < A extends RealType< A >, B extends RealType< B > >
+	double maxDifference( RandomAccessibleInterval< A > a, RandomAccessibleInterval< B > b, Interval interval )
+	{
+		final Cursor< A > cursor = Views.interval( a, interval ).localizingCursor();
+		final RandomAccess< B > access = b.randomAccess();
+
+		double maxDifference = 0;
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			access.setPosition( cursor );
+			maxDifference = Math.max( maxDifference,
+					Math.abs( cursor.get().getRealDouble() - access.get().getRealDouble() ) );
+		}
+
+		return maxDifference;
+	}
+
+	public static < A extends RealType< A >, B extends RealType< B > >
+	double maxDifference( RandomAccessibleInterval< A > a, RandomAccessibleInterval< B > b )
+	{
+		return maxDifference( a, b, a );
+	}
+
+	/**
+	 * @throws IllegalStateException if the difference exceeds the tolerance
+	 */
+	public static void check( String name, double difference, double tolerance )
+	{
+		System.out.println( name + ": max difference " + difference + ", tolerance " + tolerance );
+
+		if ( ! ( difference <= tolerance ) )
+			throw new IllegalStateException( name + " differs by " + difference + ", tolerance " + tolerance );
+	}
+}
@@ -0,0 +1,98 @@
+import de.embl.cba.transforms.utils.Bounds;
+import de.embl.cba.transforms.utils.ExactTransforms;
+import de.embl.cba.transforms.utils.ImageCreators;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.realtransform.RealViews;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+import java.util.Arrays;
+
+/**
+ * Transforms that map voxels onto voxels must be classified as signed permutations,
+ * and their views must equal the generic linear interpolation of the transformed image.
+ * All other transforms must not be classified as exact.
+ */
+public class TestExactTransforms
+{
+	public static void main( String[] args )
+	{
+		final RandomAccessibleInterval< FloatType > image =
+				ImageCreators.createSyntheticVolume( new long[]{ 40, 30, 20 }, new FloatType(), 42 );
+
+		final AffineTransform3D translation = new AffineTransform3D();
+		translation.translate( 3, -7, 12 );
+		checkExact( "translation", image, translation, new int[]{ 0, 1, 2 }, new boolean[]{ false, false, false } );
+
+		// x' = -y, y' = x, with cos( pi / 2 ) of about 6E-17 within the tolerance
+		final AffineTransform3D rotation = new AffineTransform3D();
+		rotation.rotate( 2, Math.PI / 2 );
+		rotation.translate( 10, 0, 0 );
+		checkExact( "rotation about z", image, rotation, new int[]{ 1, 0, 2 }, new boolean[]{ true, false, false } );
+
+		final AffineTransform3D flip = new AffineTransform3D();
+		flip.set( -1, 0, 0, 39, 0, 1, 0, 0, 0, 0, -1, 19 );
+		checkExact( "flip of x and z", image, flip, new int[]{ 0, 1, 2 }, new boolean[]{ true, false, true } );
+
+		// x' = z, y' = -x, z' = y
+		final AffineTransform3D permutation = new AffineTransform3D();
+		permutation.set( 0, 0, 1, 0, -1, 0, 0, 5, 0, 1, 0, -2 );
+		checkExact( "permutation", image, permutation, new int[]{ 2, 0, 1 }, new boolean[]{ false, true, false } );
+
+		final AffineTransform3D oblique = new AffineTransform3D();
+		oblique.rotate( 2, Math.PI / 4 );
+		checkNotExact( "rotation by 45 degrees", oblique );
+
+		final AffineTransform3D scaling = new AffineTransform3D();
+		scaling.scale( 2 );
+		checkNotExact( "scaling", scaling );
+
+		final AffineTransform3D halfVoxel = new AffineTransform3D();
+		halfVoxel.translate( 0.5, 0, 0 );
+		checkNotExact( "half voxel translation", halfVoxel );
+
+		final AffineTransform3D projection = new AffineTransform3D();
+		projection.set( 1, 0, 0, 0, 1, 0, 0, 0, 0, 0, 1, 0 );
+		checkNotExact( "x' and y' both from x", projection );
+	}
+
+	private static void checkExact(
+			String name,
+			RandomAccessibleInterval< FloatType > image,
+			AffineTransform3D transform,
+			int[] axes,
+			boolean[] inverted )
+	{
+		final ExactTransforms.SignedPermutation permutation = ExactTransforms.classify( transform, ExactTransforms.TOLERANCE );
+
+		if ( permutation == null )
+			throw new IllegalStateException( name + " is not classified as exact." );
+
+		if ( ! Arrays.equals( permutation.axes, axes ) || ! Arrays.equals( permutation.inverted, inverted ) )
+			throw new IllegalStateException( name + " is classified with axes " + Arrays.toString( permutation.axes )
+					+ " and inversions " + Arrays.toString( permutation.inverted ) );
+
+		final FinalInterval target = Bounds.smallestContainingInterval( Bounds.affine( image, transform ) );
+
+		final RandomAccessibleInterval< FloatType > exact = Views.interval(
+				ExactTransforms.createExactView( Views.extendZero( image ), permutation ), target );
+
+		final RandomAccessibleInterval< FloatType > generic = Views.interval(
+				RealViews.affine( Views.interpolate( Views.extendZero( image ), new NLinearInterpolatorFactory<>() ), transform ),
+				target );
+
+		// the generic interpolation weights the neighbours of the exact voxel by rounding errors of the transform
+		TestComparisons.check( name, TestComparisons.maxDifference( exact, generic ), 1.0E-3 );
+	}
+
+	private static void checkNotExact( String name, AffineTransform3D transform )
+	{
+		if ( ExactTransforms.classify( transform, ExactTransforms.TOLERANCE ) != null )
+			throw new IllegalStateException( name + " is classified as exact." );
+
+		System.out.println( name + ": not exact" );
+	}
+}
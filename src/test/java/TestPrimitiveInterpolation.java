@@ -0,0 +1,96 @@
+import de.embl.cba.transforms.utils.ImageCreators;
+import de.embl.cba.transforms.utils.PrimitiveNLinearInterpolatorFactory;
+import de.embl.cba.transforms.utils.PrimitiveTrilinearInterpolator;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.converter.Converters;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.util.Random;
+
+/**
+ * The fixed-point {@link PrimitiveTrilinearInterpolator} must give the same values as the generic
+ * {@link NLinearInterpolatorFactory} on a double copy of the image, at random positions
+ * inside and up to two voxels outside of translated and cropped images.
+ */
+public class TestPrimitiveInterpolation
+{
+	public static final long[] DIMENSIONS = new long[]{ 60, 50, 40 };
+	public static final int NUM_SAMPLES = 200000;
+
+	public static void main( String[] args )
+	{
+		// the integer types round to the nearest integer (0.5) and each of the three weights
+		// by at most half of 1 / 2^WEIGHT_BITS, times the difference of two neighbouring voxels
+		final double weightError = 3 * 0.5 / ( 1 << PrimitiveTrilinearInterpolator.WEIGHT_BITS );
+
+		check( "uint8", new UnsignedByteType(), 0.5 + weightError * 255 );
+		check( "uint16", new UnsignedShortType(), 0.5 + weightError * 65535 );
+
+		// floats are interpolated with double precision and rounded to float, values are at most 1000
+		check( "float", new FloatType(), 1.0E-4 );
+	}
+
+	private static < T extends RealType< T > & NativeType< T > >
+	void check( String name, T type, double tolerance )
+	{
+		final RandomAccessibleInterval< T > image = ImageCreators.createSyntheticVolume( DIMENSIONS, type, 42 );
+
+		final RandomAccessibleInterval< T > translated = Views.translate( image, 5, -3, 7 );
+		check( name + ", translated, zero extended", Views.extendZero( translated ), Views.extendZero( asDouble( translated ) ), translated, tolerance );
+		check( name + ", translated, border extended", Views.extendBorder( translated ), Views.extendBorder( asDouble( translated ) ), translated, tolerance );
+
+		// outside of the crop, the extension and not the voxels of the underlying image must be used
+		final RandomAccessibleInterval< T > cropped = Views.interval( image, Intervals.expand( image, -4 ) );
+		check( name + ", cropped, zero extended", Views.extendZero( cropped ), Views.extendZero( asDouble( cropped ) ), cropped, tolerance );
+		check( name + ", cropped, border extended", Views.extendBorder( cropped ), Views.extendBorder( asDouble( cropped ) ), cropped, tolerance );
+	}
+
+	private static < T extends RealType< T > >
+	void check(
+			String name,
+			RandomAccessible< T > extended,
+			RandomAccessible< DoubleType > reference,
+			Interval interval,
+			double tolerance )
+	{
+		final RealRandomAccess< T > primitive = PrimitiveNLinearInterpolatorFactory.createPrimitiveInterpolator( extended );
+		if ( primitive == null )
+			throw new IllegalStateException( name + ": not supported by the primitive interpolator." );
+
+		final RealRandomAccess< DoubleType > generic = new NLinearInterpolatorFactory< DoubleType >().create( reference );
+
+		final Random random = new Random( 42 );
+		double maxDifference = 0;
+		for ( int i = 0; i < NUM_SAMPLES; ++i )
+		{
+			for ( int d = 0; d < interval.numDimensions(); ++d )
+			{
+				final double position = interval.min( d ) - 2 + random.nextDouble() * ( interval.dimension( d ) + 3 );
+				primitive.setPosition( position, d );
+				generic.setPosition( position, d );
+			}
+
+			maxDifference = Math.max( maxDifference,
+					Math.abs( primitive.get().getRealDouble() - generic.get().getRealDouble() ) );
+		}
+
+		TestComparisons.check( name, maxDifference, tolerance );
+	}
+
+	private static < T extends RealType< T > >
+	RandomAccessibleInterval< DoubleType > asDouble( RandomAccessibleInterval< T > image )
+	{
+		return Converters.convert( image, ( i, o ) -> o.set( i.getRealDouble() ), new DoubleType() );
+	}
+}
@@ -0,0 +1,84 @@
+import de.embl.cba.transforms.utils.ImageCreators;
+import de.embl.cba.transforms.utils.RecursiveGaussian;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.gauss3.Gauss3;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * The recursive (IIR) Gaussian must approximate the sampled {@link Gauss3} kernel,
+ * and must equal it for sigmas below {@link RecursiveGaussian#SIGMA_THRESHOLD}.
+ *
+ * The recursive coefficients of Young and van Vliet fit the core of the Gaussian, at the cost of slightly
+ * heavier tails: half the L1 distance of the two 1D impulse responses, i.e. the largest error for
+ * an image with values in [0, 1], is 2.7% at sigma 3 and decreases with sigma (1.0% at sigma 20).
+ */
+public class TestRecursiveGaussian
+{
+	public static final double MAX_RELATIVE_ERROR_PER_AXIS = 0.03;
+
+	public static void main( String[] args )
+	{
+		for ( double sigma : new double[]{ 3, 5, 10, 20 } )
+			checkImpulseResponse( sigma );
+
+		final RandomAccessibleInterval< FloatType > input =
+				ImageCreators.createSyntheticVolume( new long[]{ 100, 100, 50 }, new FloatType(), 42 );
+
+		// the synthetic float volume has values from 0 to 500
+		final double valueRange = 500;
+
+		check( "sampled kernel only", input, new double[]{ 2, 2.5, 1 }, 1.0E-3 );
+		check( "recursive along x", input, new double[]{ 5, 2, 0 }, MAX_RELATIVE_ERROR_PER_AXIS * valueRange );
+		check( "recursive along all axes", input, new double[]{ 4, 4, 4 }, 3 * MAX_RELATIVE_ERROR_PER_AXIS * valueRange );
+	}
+
+	private static void checkImpulseResponse( double sigma )
+	{
+		final int length = ( int ) ( 20 * sigma ) + 1;
+		final int center = length / 2;
+
+		final Img< FloatType > impulse = ArrayImgs.floats( length );
+		final RandomAccess< FloatType > access = impulse.randomAccess();
+		access.setPosition( center, 0 );
+		access.get().set( 1 );
+
+		final float[] recursive = new float[ length ];
+		final Img< FloatType > recursiveImg = ArrayImgs.floats( recursive, length );
+		RecursiveGaussian.gauss( new double[]{ sigma }, Views.extendZero( impulse ), recursiveImg, 1 );
+
+		final float[] sampled = new float[ length ];
+		Gauss3.gauss( new double[]{ sigma }, Views.extendZero( impulse ), ArrayImgs.floats( sampled, length ) );
+
+		// unit gain of the coefficients and symmetry of the causal and anti-causal pass
+		double sum = 0;
+		double asymmetry = 0;
+		double maxDifference = 0;
+		for ( int i = 0; i < length; ++i )
+		{
+			sum += recursive[ i ];
+			asymmetry = Math.max( asymmetry, Math.abs( recursive[ i ] - recursive[ length - 1 - i ] ) );
+			maxDifference = Math.max( maxDifference, Math.abs( recursive[ i ] - sampled[ i ] ) );
+		}
+
+		TestComparisons.check( "gain at sigma " + sigma, Math.abs( sum - 1 ), 1.0E-5 );
+		TestComparisons.check( "asymmetry at sigma " + sigma, asymmetry, 1.0E-6 );
+
+		// the peak of the recursive response is about 4% (sigma 3) to 1.5% (sigma 20) lower
+		TestComparisons.check( "impulse response at sigma " + sigma, maxDifference, 0.05 * sampled[ center ] );
+	}
+
+	private static void check( String name, RandomAccessibleInterval< FloatType > input, double[] sigmas, double tolerance )
+	{
+		final RandomAccessibleInterval< FloatType > recursive = ImageCreators.createEmptyArrayImg( input );
+		RecursiveGaussian.gauss( sigmas, Views.extendBorder( input ), recursive, Runtime.getRuntime().availableProcessors() );
+
+		final RandomAccessibleInterval< FloatType > sampled = ImageCreators.createEmptyArrayImg( input );
+		Gauss3.gauss( sigmas, Views.extendBorder( input ), sampled );
+
+		TestComparisons.check( name, TestComparisons.maxDifference( recursive, sampled ), tolerance );
+	}
+}
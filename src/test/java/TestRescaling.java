@@ -0,0 +1,42 @@
+import de.embl.cba.transforms.utils.ImageCreators;
+import de.embl.cba.transforms.utils.Scalings;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+
+/**
+ * The fused blur and decimation of the array path and the recursive Gaussian blur
+ * of the lazy cell path, followed by linear resampling, must give the same output.
+ */
+public class TestRescaling
+{
+	public static void main( String[] args )
+	{
+		final RandomAccessibleInterval< FloatType > input =
+				ImageCreators.createSyntheticVolume( new long[]{ 300, 300, 100 }, new FloatType(), 42 );
+
+		// sigma = 5, i.e. the cell path blurs with the recursive Gaussian
+		final double[] scalingFactors = new double[]{ 0.1, 0.1, 0.1 };
+
+		final RandomAccessibleInterval< FloatType > fused = Scalings.createRescaledArrayImg( input, scalingFactors );
+		final RandomAccessibleInterval< FloatType > recursive = Scalings.createRescaledCellImg( input, scalingFactors );
+
+		if ( ! Intervals.equals( fused, recursive ) )
+			throw new IllegalStateException( "The output intervals differ." );
+
+		// the recursive Gaussian approximates the sampled kernel to about one percent of the value range,
+		// which is 500 for the synthetic float volume
+		final double tolerance = 0.01 * 500;
+		TestComparisons.check( "fused vs. recursive Gaussian", TestComparisons.maxDifference( fused, recursive ), tolerance );
+
+		// same for sigmas below the threshold of the recursive Gaussian, where both use the sampled kernel
+		final double[] smallFactors = new double[]{ 0.5, 0.5, 0.5 };
+		TestComparisons.check(
+				"fused vs. Gauss3",
+				TestComparisons.maxDifference(
+						Scalings.createRescaledArrayImg( input, smallFactors ),
+						Scalings.createRescaledCellImg( input, smallFactors ) ),
+				1.0E-3 );
+	}
+}
@@ -0,0 +1,92 @@
+import de.embl.cba.transforms.utils.ImageCreators;
+import de.embl.cba.transforms.utils.LazyTiffImg;
+import de.embl.cba.transforms.utils.StreamingTiffWriter;
+import io.scif.img.ImgOpener;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+import java.io.File;
+
+/**
+ * Images written by the {@link StreamingTiffWriter}, voxel-wise and slab-wise, compressed and uncompressed,
+ * must be read back unchanged by the {@link LazyTiffImg} and by SCIFIO as an independent reader.
+ * The lazy reader only supports uncompressed files and must return null for compressed ones.
+ */
+public class TestTiffRoundTrip
+{
+	// several strips per plane and a partial last slab
+	public static final long[] DIMENSIONS = new long[]{ 300, 250, 37 };
+
+	public static void main( String[] args ) throws Exception
+	{
+		check( "uint8", ImageCreators.createSyntheticVolume( DIMENSIONS, new UnsignedByteType(), 42 ) );
+		check( "uint16", ImageCreators.createSyntheticVolume( DIMENSIONS, new UnsignedShortType(), 42 ) );
+		check( "float", ImageCreators.createSyntheticVolume( DIMENSIONS, new FloatType(), 42 ) );
+	}
+
+	private static < T extends RealType< T > & NativeType< T > >
+	void check( String name, RandomAccessibleInterval< T > image ) throws Exception
+	{
+		final int numThreads = Runtime.getRuntime().availableProcessors();
+
+		for ( boolean compress : new boolean[]{ false, true } )
+		{
+			final String description = name + ( compress ? ", compressed" : ", uncompressed" );
+
+			final File file = File.createTempFile( "round-trip", ".tif" );
+			file.deleteOnExit();
+			StreamingTiffWriter.write( image, file.getPath(), compress, numThreads );
+			checkFile( description, image, file, compress );
+
+			final File slabFile = File.createTempFile( "round-trip-slabs", ".tif" );
+			slabFile.deleteOnExit();
+			StreamingTiffWriter.write(
+					slab -> LoopBuilder.setImages( Views.interval( image, slab ), slab ).forEachPixel( ( i, o ) -> o.set( i ) ),
+					image,
+					image.randomAccess().get().createVariable(),
+					slabFile.getPath(),
+					compress,
+					numThreads,
+					new double[]{ 0.5, 0.5, 2.0 },
+					"micron" );
+			checkFile( description + ", slabs", image, slabFile, compress );
+		}
+	}
+
+	private static < T extends RealType< T > & NativeType< T > >
+	void checkFile( String name, RandomAccessibleInterval< T > image, File file, boolean compress ) throws Exception
+	{
+		// a cache of a few planes, such that planes are evicted and read again
+		final RandomAccessibleInterval< T > lazy = LazyTiffImg.open( file.getPath(), 4 * DIMENSIONS[ 0 ] * DIMENSIONS[ 1 ] * Float.BYTES );
+
+		if ( compress )
+		{
+			if ( lazy != null )
+				throw new IllegalStateException( name + ": compressed files must be left to other readers." );
+		}
+		else
+		{
+			if ( lazy == null )
+				throw new IllegalStateException( name + ": not opened by the lazy reader." );
+			compare( name + ", lazy reader", image, lazy );
+		}
+
+		compare( name + ", SCIFIO", image, ( RandomAccessibleInterval ) new ImgOpener().openImgs( file.getPath() ).get( 0 ) );
+	}
+
+	private static < T extends RealType< T >, R extends RealType< R > >
+	void compare( String name, RandomAccessibleInterval< T > image, RandomAccessibleInterval< R > read )
+	{
+		if ( ! Intervals.equalDimensions( image, read ) )
+			throw new IllegalStateException( name + ": the dimensions differ." );
+
+		TestComparisons.check( name, TestComparisons.maxDifference( image, Views.zeroMin( read ) ), 0 );
+	}
+}